@@ -0,0 +1,58 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link TxHandler#handleTxs} accepts the transactions that repeated passes over the
+ * array accept: C(0) claims U and an output of P(1), D(2) claims U. The first pass rejects C,
+ * whose parent is not applied yet, then accepts P and D, so that C is rejected again at the next
+ * pass.
+ */
+public class HandleTxsOrderCheck {
+    public static void main(String[] args) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        KeyPair key = generator.generateKeyPair();
+
+        Transaction root = new Transaction();
+        root.addOutput(10, key.getPublic());
+        root.addOutput(10, key.getPublic());
+        root.finalize();
+        UTXOPool utxoPool = new UTXOPool();
+        for (int i = 0; i < root.numOutputs(); i++)
+            utxoPool.addUTXO(new UTXO(root.getHash(), i), root.getOutput(i));
+
+        Transaction p = new Transaction();
+        p.addInput(root.getHash(), 1);
+        p.addOutput(10, key.getPublic());
+        sign(p, key.getPrivate());
+        Transaction c = new Transaction();
+        c.addInput(root.getHash(), 0);
+        c.addInput(p.getHash(), 0);
+        c.addOutput(20, key.getPublic());
+        sign(c, key.getPrivate());
+        Transaction d = new Transaction();
+        d.addInput(root.getHash(), 0);
+        d.addOutput(10, key.getPublic());
+        sign(d, key.getPrivate());
+
+        Transaction[] accepted = new TxHandler(utxoPool).handleTxs(new Transaction[] { c, p, d });
+        if (!Arrays.equals(accepted, new Transaction[] { p, d }))
+            throw new AssertionError("expected P and D to be accepted, got " + accepted.length
+                    + " transactions: " + Arrays.asList(accepted).contains(c) + " for C");
+        System.out.println("handleTxs accepts P and D");
+    }
+
+    private static void sign(Transaction tx, PrivateKey key) throws GeneralSecurityException {
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(key);
+            signature.update(tx.getRawDataToSign(i));
+            tx.addSignature(signature.sign(), i);
+        }
+        tx.finalize();
+    }
+}
@@ -19,7 +19,7 @@ public class MaxFeeTxHandler {
 
 
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        List<Transaction> confirmedTransactions = new ArrayList<>();
+        List<TransactionWithFee> transactionWithFees = new ArrayList<>();
         List<Transaction> possibleTransactions = new ArrayList<>();
 
         for (Transaction possibleTx : possibleTxs) {
@@ -34,51 +34,26 @@ public class MaxFeeTxHandler {
             for (Iterator<Transaction> iterator = possibleTransactions.listIterator(); iterator.hasNext(); ) {
                 Transaction transaction = iterator.next();
                 if (isValidTx(transaction)) {
+                    // the fee has to be computed before the outputs it claims leave the pool
+                    transactionWithFees.add(new TransactionWithFee(getFee(transaction), transaction));
+
                     removeOldUTXO(transaction);
                     addNewUTXO(transaction);
 
-                    confirmedTransactions.add(transaction);
-
                     iterator.remove();
                     haveValidTransaction = true;
                 }
             }
         }
 
-        TreeSet<TransactionWithFee> transactionWithFees = new TreeSet<>(new Comparator<TransactionWithFee>() {
+        // a stable sort, so transactions paying the same fee are all kept in their confirmation order
+        Collections.sort(transactionWithFees, new Comparator<TransactionWithFee>() {
             @Override
             public int compare(TransactionWithFee o1, TransactionWithFee o2) {
-                if (o1.getFee() < o2.getFee()) {
-                    return -1;
-                } else if (o1.getFee() == o2.getFee()) {
-                    return 0;
-                } else {
-                    return 1;
-                }
+                return Long.compare(o1.getFee(), o2.getFee());
             }
         });
 
-        for (Transaction transaction : confirmedTransactions) {
-            double totalInput = 0;
-            double totalOutput = 0;
-            for (int i = 0; i < transaction.numInputs(); i++) {
-                Transaction.Input input = transaction.getInput(i);
-                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-
-                Transaction.Output output = utxoPool.getTxOutput(utxo);
-
-                totalInput += output.value;
-            }
-
-            for (Transaction.Output output : transaction.getOutputs()) {
-                totalOutput += output.value;
-            }
-
-            double diff = totalInput - totalOutput;
-
-            transactionWithFees.add(new TransactionWithFee(diff, transaction));
-        }
-
         int size = transactionWithFees.size();
         Transaction[] resultTx = new Transaction[size];
 
@@ -92,6 +67,25 @@ public class MaxFeeTxHandler {
         return resultTx;
     }
 
+    private long getFee(final Transaction transaction) {
+        long totalInput = 0;
+        long totalOutput = 0;
+        for (int i = 0; i < transaction.numInputs(); i++) {
+            Transaction.Input input = transaction.getInput(i);
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+
+            Transaction.Output output = utxoPool.getTxOutput(utxo);
+
+            totalInput += output.value;
+        }
+
+        for (Transaction.Output output : transaction.getOutputs()) {
+            totalOutput += output.value;
+        }
+
+        return totalInput - totalOutput;
+    }
+
     private boolean isContainedInPool(final Transaction tx) {
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input input = tx.getInput(i);
@@ -148,19 +142,24 @@ public class MaxFeeTxHandler {
     }
 
     private boolean isSameValues(Transaction tx) {
-        double totalIn = 0;
-        double totalOut = 0;
+        long totalIn = 0;
+        long totalOut = 0;
 
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+        // sums that do not fit in a long make the transaction invalid, rather than wrap around
+        try {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
 
-            Transaction.Output txOutput = utxoPool.getTxOutput(utxo);
-            totalIn += txOutput.value;
-        }
+                Transaction.Output txOutput = utxoPool.getTxOutput(utxo);
+                totalIn = Math.addExact(totalIn, txOutput.value);
+            }
 
-        for (Transaction.Output output : tx.getOutputs()) {
-            totalOut += output.value;
+            for (Transaction.Output output : tx.getOutputs()) {
+                totalOut = Math.addExact(totalOut, output.value);
+            }
+        } catch (ArithmeticException e) {
+            return false;
         }
 
         return totalIn >= totalOut;
@@ -183,15 +182,15 @@ public class MaxFeeTxHandler {
     }
 
     private class TransactionWithFee {
-        double fee;
+        long fee;
         Transaction transaction;
 
-        public TransactionWithFee(double fee, Transaction transaction) {
+        public TransactionWithFee(long fee, Transaction transaction) {
             this.fee = fee;
             this.transaction = transaction;
         }
 
-        public double getFee() {
+        public long getFee() {
             return fee;
         }
 
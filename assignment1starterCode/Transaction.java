@@ -7,6 +7,9 @@ import java.security.PublicKey;
 
 public class Transaction {
 
+    /** Number of base units in a bitcoin, the unit of the values of the outputs */
+    public static final long COIN = 100000000L;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -32,12 +35,12 @@ public class Transaction {
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units, {@link #COIN} of which make a bitcoin */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
-        public Output(double v, PublicKey addr) {
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
@@ -64,11 +67,31 @@ public class Transaction {
         inputs.add(in);
     }
 
-    public void addOutput(double value, PublicKey address) {
+    /**
+     * adds an output of {@code value} base units; an amount in bitcoins is converted with
+     * {@link #toBaseUnits}
+     */
+    public void addOutput(long value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
     }
 
+    /**
+     * @return {@code bitcoins} in base units, rounded to the nearest one
+     * @throws IllegalArgumentException if {@code bitcoins} is not a number or too large
+     */
+    public static long toBaseUnits(double bitcoins) {
+        double units = Math.rint(bitcoins * COIN);
+        if (Double.isNaN(units) || Math.abs(units) >= 0x1p63)
+            throw new IllegalArgumentException("not a valid amount: " + bitcoins);
+        return (long) units;
+    }
+
+    /** @return {@code units} base units in bitcoins */
+    public static double toBitcoins(long units) {
+        return (double) units / COIN;
+    }
+
     public void removeInput(int index) {
         inputs.remove(index);
     }
@@ -100,8 +123,8 @@ public class Transaction {
         for (int i = 0; i < outputIndex.length; i++)
             sigData.add(outputIndex[i]);
         for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
+            ByteBuffer bo = ByteBuffer.allocate(Long.SIZE / 8);
+            bo.putLong(op.value);
             byte[] value = bo.array();
             byte[] addressBytes = op.address.getEncoded();
             for (int i = 0; i < value.length; i++)
@@ -140,8 +163,8 @@ public class Transaction {
                     rawTx.add(signature[i]);
         }
         for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
+            ByteBuffer b = ByteBuffer.allocate(Long.SIZE / 8);
+            b.putLong(op.value);
             byte[] value = b.array();
             byte[] addressBytes = op.address.getEncoded();
             for (int i = 0; i < value.length; i++) {
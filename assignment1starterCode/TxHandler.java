@@ -37,32 +37,79 @@ public class TxHandler {
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     * <p>
+     * The transactions are checked in passes over the array, in index order, until a pass accepts
+     * none: a transaction whose outputs are claimed by one of lower index is only applied at the
+     * next pass, which decides which of two transactions claiming the same output is accepted. A
+     * transaction is only checked once the transactions whose outputs it claims are applied, and
+     * never again: the outputs it claims can only be spent afterwards.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         List<Transaction> confirmedTransactions = new ArrayList<>();
-        List<Transaction> possibleTransactions = new ArrayList<>();
 
-        for (int i = 0; i < possibleTxs.length; i++) {
-            possibleTransactions.add(possibleTxs[i]);
+        // transactions waiting for the outputs of other transactions of the epoch, by the hash of
+        // the transaction they wait for
+        Map<ByteArrayWrapper, List<Integer>> waitingTransactions = new HashMap<>();
+        int[] missingParents = new int[possibleTxs.length];
+        // transactions to check at this pass and at the next one
+        PriorityQueue<Integer> readyTransactions = new PriorityQueue<>();
+        PriorityQueue<Integer> nextPass = new PriorityQueue<>();
+
+        Set<ByteArrayWrapper> possibleHashes = new HashSet<>();
+        for (Transaction transaction : possibleTxs) {
+            if (transaction != null && transaction.getHash() != null) {
+                possibleHashes.add(new ByteArrayWrapper(transaction.getHash()));
+            }
         }
 
-        boolean haveValidTransaction = true;
-
-        while (haveValidTransaction) {
-            haveValidTransaction = false;
-
-            for (Iterator<Transaction> iterator = possibleTransactions.listIterator(); iterator.hasNext();) {
-                Transaction transaction = iterator.next();
-                if (isValidTx(transaction)) {
-                    removeOldUTXO(transaction);
-                    addNewUTXO(transaction);
+        for (int i = 0; i < possibleTxs.length; i++) {
+            Set<ByteArrayWrapper> parents = getMissingParents(possibleTxs[i], possibleHashes);
+            if (parents == null) {
+                continue;
+            }
 
-                    confirmedTransactions.add(transaction);
+            for (ByteArrayWrapper parent : parents) {
+                List<Integer> waiting = waitingTransactions.get(parent);
+                if (waiting == null) {
+                    waiting = new ArrayList<>();
+                    waitingTransactions.put(parent, waiting);
+                }
+                waiting.add(i);
+            }
+            missingParents[i] = parents.size();
+            if (missingParents[i] == 0) {
+                readyTransactions.add(i);
+            }
+        }
 
-                    iterator.remove();
-                    haveValidTransaction = true;
+        while (!readyTransactions.isEmpty()) {
+            int i = readyTransactions.poll();
+            Transaction transaction = possibleTxs[i];
+            if (isValidTx(transaction)) {
+                removeOldUTXO(transaction);
+                addNewUTXO(transaction);
+
+                confirmedTransactions.add(transaction);
+
+                List<Integer> children = waitingTransactions.remove(new ByteArrayWrapper(transaction.getHash()));
+                if (children != null) {
+                    for (int child : children) {
+                        if (--missingParents[child] == 0) {
+                            // this pass has already gone by the children of lower index
+                            if (child > i) {
+                                readyTransactions.add(child);
+                            } else {
+                                nextPass.add(child);
+                            }
+                        }
+                    }
                 }
             }
+            if (readyTransactions.isEmpty()) {
+                PriorityQueue<Integer> ready = readyTransactions;
+                readyTransactions = nextPass;
+                nextPass = ready;
+            }
         }
 
         int size = confirmedTransactions.size();
@@ -75,6 +122,32 @@ public class TxHandler {
         return resultTx;
     }
 
+    /**
+     * @return the hashes of the transactions of {@code possibleHashes} whose outputs {@code tx}
+     * claims and which are not in the current UTXO pool yet, or null if {@code tx} claims an output
+     * that neither is in the pool nor can be added to it during this epoch
+     */
+    private Set<ByteArrayWrapper> getMissingParents(final Transaction tx, final Set<ByteArrayWrapper> possibleHashes) {
+        if (tx == null) {
+            return null;
+        }
+
+        Set<ByteArrayWrapper> parents = new HashSet<>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (!utxoPool.contains(utxo)) {
+                ByteArrayWrapper parent = new ByteArrayWrapper(input.prevTxHash);
+                if (!possibleHashes.contains(parent)) {
+                    return null;
+                }
+                parents.add(parent);
+            }
+        }
+
+        return parents;
+    }
+
     //(1) all outputs claimed by {@code tx} are in the current UTXO pool,
     //чтобы совершить новую транзакцию, выход предыдущей должен быть в списке непотрачкнных
     private boolean isContainedInPool(final Transaction tx) {
@@ -138,19 +211,24 @@ public class TxHandler {
     //(5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
     //     values; and false otherwise.
     private boolean isSameValues(Transaction tx) {
-        double totalIn = 0;
-        double totalOut = 0;
+        long totalIn = 0;
+        long totalOut = 0;
 
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+        // sums that do not fit in a long make the transaction invalid, rather than wrap around
+        try {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
 
-            Transaction.Output txOutput = utxoPool.getTxOutput(utxo);
-            totalIn += txOutput.value;
-        }
+                Transaction.Output txOutput = utxoPool.getTxOutput(utxo);
+                totalIn = Math.addExact(totalIn, txOutput.value);
+            }
 
-        for (Transaction.Output output : tx.getOutputs()) {
-            totalOut += output.value;
+            for (Transaction.Output output : tx.getOutputs()) {
+                totalOut = Math.addExact(totalOut, output.value);
+            }
+        } catch (ArithmeticException e) {
+            return false;
         }
 
         return totalIn >= totalOut;
@@ -112,19 +112,24 @@ public class TxHandlerSubmited {
     }
 
     private boolean isSameValues(Transaction tx) {
-        double totalIn = 0;
-        double totalOut = 0;
+        long totalIn = 0;
+        long totalOut = 0;
 
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+        // sums that do not fit in a long make the transaction invalid, rather than wrap around
+        try {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
 
-            Transaction.Output txOutput = utxoPool.getTxOutput(utxo);
-            totalIn += txOutput.value;
-        }
+                Transaction.Output txOutput = utxoPool.getTxOutput(utxo);
+                totalIn = Math.addExact(totalIn, txOutput.value);
+            }
 
-        for (Transaction.Output output : tx.getOutputs()) {
-            totalOut += output.value;
+            for (Transaction.Output output : tx.getOutputs()) {
+                totalOut = Math.addExact(totalOut, output.value);
+            }
+        } catch (ArithmeticException e) {
+            return false;
         }
 
         return totalIn >= totalOut;
@@ -0,0 +1,223 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns the public keys outputs pay to, so that all the outputs paying to the same address share
+ * a single key and {@link Address}. An address is given a compact id, and keeps the encodings of
+ * its key and a few signature verifiers initialized with it, so that neither the encodings nor
+ * the verifiers are rebuilt each time an output is hashed, written or spent.
+ * <p>
+ * Keys are looked up by instance first, then by their X.509 encoding. A table only refers weakly to
+ * its addresses, which the outputs paying to them keep alive: the address of a key no longer paid
+ * to by any output, such as one of a rejected transaction, is collected and dropped from the
+ * table, and interned again with a new id should it come back. A table is thread-safe.
+ */
+public class AddressTable {
+
+    /** Maximum number of idle verifiers kept by an address */
+    private static final int MAX_IDLE_VERIFIERS = 4;
+
+    private static final AddressTable DEFAULT = new AddressTable();
+
+    private final ConcurrentHashMap<Instance, AddressReference> byInstance = new ConcurrentHashMap<Instance, AddressReference>();
+    private final ConcurrentHashMap<ByteArrayWrapper, AddressReference> byEncoding = new ConcurrentHashMap<ByteArrayWrapper, AddressReference>();
+    /** References to the addresses collected, whose entries are to be removed */
+    private final ReferenceQueue<Address> collected = new ReferenceQueue<Address>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /** @return the table the outputs intern their addresses in */
+    public static AddressTable getDefault() {
+        return DEFAULT;
+    }
+
+    /** @return the address of {@code key}, whose key is equal to {@code key} */
+    public Address intern(PublicKey key) {
+        purge();
+        Address address = get(byInstance.get(new Instance(key)));
+        if (address != null)
+            return address;
+        return intern(key, key.getEncoded());
+    }
+
+    /**
+     * @return the address of the key with the X.509 encoding {@code encoded}, decoding the key
+     *         only if it is not in the table yet
+     * @throws InvalidKeySpecException if {@code encoded} is not the encoding of an RSA key
+     */
+    public Address decode(byte[] encoded) throws InvalidKeySpecException {
+        purge();
+        Address address = get(byEncoding.get(new ByteArrayWrapper(encoded)));
+        if (address != null)
+            return address;
+        PublicKey key;
+        try {
+            key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return intern(key, key.getEncoded());
+    }
+
+    /** @return the number of addresses in the table, some of which may have just been collected */
+    public int size() {
+        purge();
+        return byEncoding.size();
+    }
+
+    private Address intern(PublicKey key, byte[] encoded) {
+        ByteArrayWrapper wrapped = new ByteArrayWrapper(encoded);
+        while (true) {
+            AddressReference reference = byEncoding.get(wrapped);
+            Address address = get(reference);
+            if (address != null)
+                return address;
+            address = new Address(key, encoded, nextId.getAndIncrement());
+            AddressReference created = new AddressReference(address, wrapped, new Instance(key), collected);
+            // replaces the entry of a collected address with the same encoding, if any
+            boolean added = reference == null ? byEncoding.putIfAbsent(wrapped, created) == null
+                    : byEncoding.replace(wrapped, reference, created);
+            if (added) {
+                byInstance.put(created.instance, created);
+                return address;
+            }
+        }
+    }
+
+    private static Address get(AddressReference reference) {
+        return reference == null ? null : reference.get();
+    }
+
+    /** Removes the entries of the addresses collected so far */
+    private void purge() {
+        AddressReference reference;
+        while ((reference = (AddressReference) collected.poll()) != null) {
+            byEncoding.remove(reference.encoding, reference);
+            byInstance.remove(reference.instance, reference);
+        }
+    }
+
+    /** A weak reference to an address, along with the keys of its entries */
+    private static class AddressReference extends WeakReference<Address> {
+        final ByteArrayWrapper encoding;
+        final Instance instance;
+
+        AddressReference(Address address, ByteArrayWrapper encoding, Instance instance,
+                ReferenceQueue<Address> queue) {
+            super(address, queue);
+            this.encoding = encoding;
+            this.instance = instance;
+        }
+    }
+
+    /** An interned public key */
+    public static class Address {
+        private final PublicKey key;
+        private final int id;
+        private final byte[] encoded;
+        private final byte[] rawBytes;
+        private final int hash;
+        /** verifiers initialized with {@code key}, created on the first verification */
+        private volatile ArrayBlockingQueue<Signature> idleVerifiers;
+
+        private Address(PublicKey key, byte[] encoded, int id) {
+            this.key = key;
+            this.id = id;
+            this.encoded = encoded;
+            BigInteger exponent = ((RSAPublicKey) key).getPublicExponent();
+            BigInteger modulus = ((RSAPublicKey) key).getModulus();
+            byte[] addressExponent = exponent.toByteArray();
+            byte[] addressModulus = modulus.toByteArray();
+            rawBytes = Arrays.copyOf(addressExponent, addressExponent.length + addressModulus.length);
+            System.arraycopy(addressModulus, 0, rawBytes, addressExponent.length, addressModulus.length);
+            hash = exponent.hashCode() * 31 + modulus.hashCode();
+        }
+
+        /** @return the key all the outputs paying to this address share */
+        public PublicKey getKey() {
+            return key;
+        }
+
+        /** @return the id of the address, unique within its table and assigned in sequence */
+        public int getId() {
+            return id;
+        }
+
+        /** @return the X.509 encoding of the key, which must not be modified */
+        byte[] getEncoded() {
+            return encoded;
+        }
+
+        /** @return the public exponent followed by the modulus of the key, which must not be modified */
+        byte[] getRawBytes() {
+            return rawBytes;
+        }
+
+        /**
+         * @return true if {@code signature} is a valid signature of {@code message} under the key,
+         *         as {@link Crypto#verifySignature} tells
+         */
+        public boolean verify(byte[] message, byte[] signature) {
+            if (signature == null)
+                return Crypto.verifySignature(key, message, signature);
+            ArrayBlockingQueue<Signature> idle = idleVerifiers;
+            if (idle == null) {
+                idle = new ArrayBlockingQueue<Signature>(MAX_IDLE_VERIFIERS);
+                idleVerifiers = idle;
+            }
+            Signature sig = idle.poll();
+            try {
+                if (sig == null) {
+                    sig = Signature.getInstance("SHA256withRSA");
+                    sig.initVerify(key);
+                }
+                sig.update(message);
+                // verify resets the verifier to its initial state, ready for the next signature
+                boolean valid = sig.verify(signature);
+                idle.offer(sig);
+                return valid;
+            } catch (SignatureException e) {
+                // the verifier is left in an unknown state and dropped
+                return false;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } catch (InvalidKeyException e) {
+                return Crypto.verifySignature(key, message, signature);
+            }
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** A key compared by identity */
+    private static class Instance {
+        private final PublicKey key;
+
+        Instance(PublicKey key) {
+            this.key = key;
+        }
+
+        public boolean equals(Object other) {
+            return other instanceof Instance && ((Instance) other).key == key;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(key);
+        }
+    }
+}
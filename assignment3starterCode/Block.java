@@ -1,23 +1,36 @@
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Block {
 
-    public static final double COINBASE = 25;
+    public static final long COINBASE = 25 * Transaction.COIN;
 
     private byte[] hash;
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
 
+    /** digest of the raw block so far, fed as transactions are added */
+    private MessageDigest digest;
+    /**
+     * transactions fed to {@code digest}, the first {@code digested} ones, with their modification
+     * count at the time
+     */
+    private Transaction[] digestedTxs;
+    private int[] digestedModCounts;
+    private int digested;
+
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        resetDigest();
     }
 
     public Transaction getCoinbase() {
@@ -42,32 +55,90 @@ public class Block {
 
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        if (digested == txs.size() - 1)
+            digestTransaction(tx);
     }
 
+    /** @return the previous block hash, if any, followed by the raw transactions of the block */
     public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
+        int size = prevBlockHash == null ? 0 : prevBlockHash.length;
+        for (Transaction tx : txs)
+            size += tx.getRawTxSize();
+        ByteBuffer rawBlock = ByteBuffer.allocate(size);
         if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
-        }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
-        return raw;
+            rawBlock.put(prevBlockHash);
+        for (Transaction tx : txs)
+            tx.writeRawTx(rawBlock);
+        return rawBlock.array();
     }
 
+    /**
+     * Computes the hash of the block from the transactions digested as they were added, or from
+     * scratch if the transactions were changed in the meantime
+     */
     public void finalize() {
+        if (!isDigestCurrent())
+            resetDigest();
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
+            hash = ((MessageDigest) digest.clone()).digest();
+        } catch (CloneNotSupportedException x) {
+            MessageDigest md = Crypto.sha256();
+            if (prevBlockHash != null)
+                md.update(prevBlockHash);
+            for (Transaction tx : txs)
+                tx.updateDigest(md);
             hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+        }
+    }
+
+    /** @return true if {@code digest} was fed exactly the current transactions of the block */
+    private boolean isDigestCurrent() {
+        if (digested != txs.size())
+            return false;
+        for (int i = 0; i < digested; i++) {
+            Transaction tx = txs.get(i);
+            if (digestedTxs[i] != tx || digestedModCounts[i] != tx.getModCount())
+                return false;
+        }
+        return true;
+    }
+
+    private void resetDigest() {
+        digest = newDigest();
+        digestedTxs = new Transaction[Math.max(txs.size(), 4)];
+        digestedModCounts = new int[digestedTxs.length];
+        digested = 0;
+        if (prevBlockHash != null)
+            digest.update(prevBlockHash);
+        for (Transaction tx : txs)
+            digestTransaction(tx);
+    }
+
+    private void digestTransaction(Transaction tx) {
+        tx.updateDigest(digest);
+        if (digested == digestedTxs.length) {
+            digestedTxs = Arrays.copyOf(digestedTxs, digested * 2);
+            digestedModCounts = Arrays.copyOf(digestedModCounts, digested * 2);
+        }
+        digestedTxs[digested] = tx;
+        digestedModCounts[digested] = tx.getModCount();
+        digested++;
+    }
+
+    /**
+     * @return a new SHA-256 digest, cloned from the digest of the calling thread rather than
+     *         looked up among the providers
+     */
+    private static MessageDigest newDigest() {
+        MessageDigest md = Crypto.sha256();
+        try {
+            return (MessageDigest) md.clone();
+        } catch (CloneNotSupportedException x) {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
         }
     }
 }
@@ -2,41 +2,320 @@
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class BlockChain {
 
     public static final int CUT_OFF_AGE = 10;
-    private ArrayList<Node> heads;
+    /** Number of blocks waiting for their parent that are kept, and for how long */
+    public static final int MAX_ORPHANS = 100;
+    public static final long MAX_ORPHAN_AGE_MILLIS = 10 * 60 * 1000;
+
+    private static final Logger LOGGER = Logger.getLogger(BlockChain.class.getName());
+
+    private static final LatencyHistogram ADD_NANOS = Metrics.getDefault().histogram("block.add.nanos");
+    private static final LatencyHistogram UTXO_POOL_NANOS = Metrics.getDefault().histogram("block.utxoPool.nanos");
+    private static final LatencyHistogram VERIFY_NANOS = Metrics.getDefault().histogram("block.verify.nanos");
+    private static final LatencyHistogram VALIDATE_NANOS = Metrics.getDefault().histogram("block.validate.nanos");
+    private static final LatencyHistogram UPDATE_NANOS = Metrics.getDefault().histogram("block.update.nanos");
+    private static final LatencyHistogram LINK_NANOS = Metrics.getDefault().histogram("block.link.nanos");
+    private static final LatencyHistogram PRUNE_NANOS = Metrics.getDefault().histogram("block.prune.nanos");
+    private static final LatencyHistogram STORE_NANOS = Metrics.getDefault().histogram("block.store.nanos");
+    private static final LatencyHistogram TRANSACTION_POOL_NANOS = Metrics.getDefault().histogram("block.transactionPool.nanos");
+    private static final LongAdder BLOCKS_ADDED = Metrics.getDefault().counter("block.added");
+    private static final LongAdder BLOCKS_REJECTED = Metrics.getDefault().counter("block.rejected");
+    private static final LongAdder BLOCKS_ORPHANED = Metrics.getDefault().counter("block.orphaned");
+    private static final LongAdder FORKS = Metrics.getDefault().counter("block.fork");
+    private static final LongAdder REORGS = Metrics.getDefault().counter("block.reorg");
+    private static final LongAdder TRANSACTIONS_ACCEPTED = Metrics.getDefault().counter("transactionPool.accepted");
+    private static final LongAdder TRANSACTIONS_REJECTED = Metrics.getDefault().counter("transactionPool.rejected");
+    private static final LongAdder CHECKPOINTS_FAILED = Metrics.getDefault().counter("checkpoint.failed");
+    /**
+     * The nodes in memory by height, those at height {@code h} in bucket
+     * {@code h % (CUT_OFF_AGE + 1)}. The bucket of a new max height holds the nodes that just
+     * became too old, which are pruned all at once.
+     */
+    private ArrayList<List<Node>> heights;
 
     private Map<ByteArrayWrapper, Node> nodes;
     private  TransactionPool transactionPool;
-    private int maxHeight;
-    private Node maxHeightBlock;
+    /**
+     * The max height block and the UTXO pool at it, published together so that they can be read
+     * without locking. The pool is the only UTXO pool kept, the pools at the other blocks are
+     * obtained from it by undoing and applying blocks.
+     */
+    private volatile Tip tip;
+    /**
+     * Held while a block is linked into the block chain, which is the only step of
+     * {@link #addBlock} done one block at a time, and while the nodes are walked
+     */
+    private final Object lock = new Object();
+    /**
+     * Held while a transaction is added to the transaction pool, and while the pool is brought up
+     * to date with a new max height block, so that the pool never holds two transactions claiming
+     * the same output. Lookups in the pool do not take it.
+     */
+    private final Object transactionPoolLock = new Object();
+    /** The block the transaction pool was last brought up to date with */
+    private Node transactionPoolTip;
+    private volatile SignatureVerifier signatureVerifier;
+    /** Where the blocks pruned from {@code nodes} are kept, or null if they are dropped */
+    private BlockStore blockStore;
+    /**
+     * The nodes pruned that are still to be written to the block store, in the order they were
+     * pruned and by hash. They are written once {@code lock} is released.
+     */
+    private final Queue<Node> toStore = new ConcurrentLinkedQueue<>();
+    private final Map<ByteArrayWrapper, Node> unstored = new ConcurrentHashMap<>();
+    /** Held while the pruned nodes are written to the block store, so that they are written in order */
+    private final Object blockStoreLock = new Object();
+    private OrphanPool orphanPool;
+    /** File the block chain is checkpointed to every {@code checkpointInterval} blocks, or null */
+    private File checkpointFile;
+    private int checkpointInterval;
+    /** Held while a checkpoint is written, along with the height of the last one written */
+    private final Object checkpointLock = new Object();
+    private int checkpointHeight;
 
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
-        // IMPLEMENT THIS
+        this(genesisBlock, new TransactionPool());
+    }
+
+    /**
+     * create a block chain with just a genesis block which keeps the transactions to mine in
+     * {@code transactionPool}, e.g. a bounded pool
+     */
+    public BlockChain(Block genesisBlock, TransactionPool transactionPool) {
+        this(genesisBlock, transactionPool, null);
+    }
+
+    /**
+     * create a block chain with just a genesis block, which writes the blocks that become too old
+     * to be built upon to {@code blockStore} instead of dropping them
+     */
+    public BlockChain(Block genesisBlock, TransactionPool transactionPool, BlockStore blockStore) {
         Transaction coinbaseTx = genesisBlock.getCoinbase();
         UTXO utxo = new UTXO(coinbaseTx.getHash(), 0);
 
         UTXOPool utxoPool = new UTXOPool();
         utxoPool.addUTXO(utxo, coinbaseTx.getOutput(0));
 
-        Node genesisNode = new Node(null, genesisBlock, utxoPool);
-        heads = new ArrayList<>();
-        heads.add(genesisNode);
-        nodes = new HashMap<>();
-        nodes.put(new ByteArrayWrapper(genesisBlock.getHash()), genesisNode);
-        transactionPool = new TransactionPool();
-        maxHeight = 1;
-        maxHeightBlock = genesisNode;
+        Node genesisNode = new Node(null, genesisBlock, new UTXOPool());
+        initHeights();
+        nodes = new ConcurrentHashMap<>();
+        addNode(genesisNode);
+        this.transactionPool = transactionPool;
+        tip = new Tip(genesisNode, new UTXOPool(utxoPool));
+        transactionPoolTip = genesisNode;
+        signatureVerifier = new SignatureVerifier();
+        this.blockStore = blockStore;
+        orphanPool = new OrphanPool(MAX_ORPHANS, MAX_ORPHAN_AGE_MILLIS);
+        if (Metrics.ENABLED) {
+            registerGauges(this);
+        }
+    }
+
+    /**
+     * create a block chain from the checkpoint in {@code checkpointFile}, in the state it was in
+     * when the checkpoint was written, without replaying its blocks. Forks that branched off the
+     * longest chain before its oldest block in memory cannot be rebuilt and are left out.
+     */
+    public BlockChain(File checkpointFile, TransactionPool transactionPool, BlockStore blockStore)
+            throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+        int numBlocks = checkpoint.blocks.size();
+
+        // only the blocks descending from the oldest block of the longest chain can be reached
+        int root = checkpoint.maxHeightBlock;
+        while (checkpoint.parents.get(root) >= 0) {
+            root = checkpoint.parents.get(root);
+        }
+
+        Node[] restored = new Node[numBlocks];
+        initHeights();
+        nodes = new ConcurrentHashMap<>();
+        for (int i = 0; i < numBlocks; i++) {
+            int parent = checkpoint.parents.get(i);
+            if (i != root && (parent < 0 || restored[parent] == null)) {
+                continue;
+            }
+            Node node = new Node(parent < 0 ? null : restored[parent], checkpoint.blocks.get(i),
+                    checkpoint.parentOutputs.get(i));
+            node.height = checkpoint.heights.get(i);
+            restored[i] = node;
+            addNode(node);
+        }
+        this.transactionPool = transactionPool;
+        tip = new Tip(restored[checkpoint.maxHeightBlock], new UTXOPool(checkpoint.utxoPool));
+        transactionPoolTip = tip.node;
+        signatureVerifier = new SignatureVerifier();
+        this.blockStore = blockStore;
+        orphanPool = new OrphanPool(MAX_ORPHANS, MAX_ORPHAN_AGE_MILLIS);
+        if (Metrics.ENABLED) {
+            registerGauges(this);
+        }
+    }
+
+    /**
+     * Make the default metrics read their gauges from {@code blockChain}. The method is static so
+     * that the gauges only refer to the block chain weakly, and the metrics do not keep it alive.
+     */
+    private static void registerGauges(BlockChain blockChain) {
+        Metrics metrics = Metrics.getDefault();
+        metrics.gauge("chain.height", new ChainGauge(blockChain) {
+            long get(BlockChain blockChain) {
+                return blockChain.tip.node.height;
+            }
+        });
+        metrics.gauge("utxo.size", new ChainGauge(blockChain) {
+            long get(BlockChain blockChain) {
+                return blockChain.tip.utxoPool.size();
+            }
+        });
+        metrics.gauge("transactionPool.size", new ChainGauge(blockChain) {
+            long get(BlockChain blockChain) {
+                return blockChain.transactionPool == null ? 0 : blockChain.transactionPool.size();
+            }
+        });
+        metrics.gauge("orphan.size", new ChainGauge(blockChain) {
+            long get(BlockChain blockChain) {
+                return blockChain.orphanPool.size();
+            }
+        });
+        final SignatureCache cache = SignatureCache.getDefault();
+        metrics.gauge("signatureCache.size", new Metrics.Gauge() {
+            public long get() {
+                return cache.size();
+            }
+        });
+        metrics.gauge("signatureCache.hits", new Metrics.Gauge() {
+            public long get() {
+                return cache.getHits();
+            }
+        });
+        metrics.gauge("signatureCache.misses", new Metrics.Gauge() {
+            public long get() {
+                return cache.getMisses();
+            }
+        });
+    }
+
+    /**
+     * Write a checkpoint of the block chain to {@code file} whenever the max height block reaches
+     * a multiple of {@code interval}
+     */
+    public void setCheckpoint(File file, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        checkpointFile = file;
+        checkpointInterval = interval;
+    }
+
+    /**
+     * Write a checkpoint of the block chain to {@code file}, from which it can be restarted with
+     * {@link #BlockChain(File, TransactionPool, BlockStore)}
+     */
+    public void writeCheckpoint(File file) throws IOException {
+        Checkpoint checkpoint;
+        synchronized (lock) {
+            checkpoint = createCheckpoint();
+        }
+        synchronized (checkpointLock) {
+            Checkpoint.write(checkpoint, file);
+        }
+    }
+
+    /**
+     * Write {@code checkpoint} to the periodic checkpoint file, unless a more recent checkpoint
+     * was written to it in the meantime. The block is already added, so a checkpoint that cannot
+     * be written is only logged, and the next one tried as usual.
+     */
+    private void writePeriodicCheckpoint(Checkpoint checkpoint) {
+        int height = checkpoint.heights.get(checkpoint.maxHeightBlock);
+        synchronized (checkpointLock) {
+            if (height <= checkpointHeight) {
+                return;
+            }
+            try {
+                Checkpoint.write(checkpoint, checkpointFile);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "cannot write checkpoint to " + checkpointFile, e);
+                if (Metrics.ENABLED) {
+                    CHECKPOINTS_FAILED.increment();
+                }
+                return;
+            }
+            checkpointHeight = height;
+        }
+    }
+
+    private Checkpoint createCheckpoint() {
+        Tip tip = this.tip;
+        List<Node> inMemory = new ArrayList<>(nodes.values());
+        Collections.sort(inMemory, new Comparator<Node>() {
+            @Override
+            public int compare(Node node1, Node node2) {
+                return Integer.compare(node1.height, node2.height);
+            }
+        });
+        Map<Node, Integer> indexes = new IdentityHashMap<>();
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.utxoPool = tip.utxoPool;
+        for (Node node : inMemory) {
+            Integer parent = indexes.get(node.parent);
+            indexes.put(node, checkpoint.blocks.size());
+            checkpoint.blocks.add(node.block);
+            checkpoint.parents.add(parent == null ? -1 : parent);
+            checkpoint.heights.add(node.height);
+            checkpoint.parentOutputs.add(node.parentOutputs);
+        }
+        checkpoint.maxHeightBlock = indexes.get(tip.node);
+        return checkpoint;
+    }
+
+    /**
+     * Set how many signatures of a block may be verified at the same time, by default as many as
+     * the common fork/join pool allows
+     */
+    public void setVerifyParallelism(int parallelism) {
+        SignatureVerifier previous;
+        synchronized (lock) {
+            previous = signatureVerifier;
+            signatureVerifier = new SignatureVerifier(parallelism);
+        }
+        // the blocks being verified with the previous verifier finish before its threads stop
+        previous.shutdown();
+    }
+
+    /**
+     * Get the max height block and the UTXO pool at it, read together
+     */
+    Tip getTip() {
+        return tip;
     }
 
     /**
@@ -44,23 +323,69 @@ public class BlockChain {
      */
     public Block getMaxHeightBlock() {
         // IMPLEMENT THIS
-        if (maxHeightBlock == null) {
-            return null;
+        return tip.node.block;
+    }
+
+    /**
+     * Get the block whose hash is {@code hash}, from memory or else from the block store, or null
+     * if the block chain does not have it
+     */
+    public Block getBlock(byte[] hash) {
+        ByteArrayWrapper key = new ByteArrayWrapper(hash);
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = unstored.get(key);
+        }
+        if (node != null) {
+            return node.block;
         }
+        return blockStore == null ? null : blockStore.getBlock(hash);
+    }
 
-        return maxHeightBlock.block;
+    /**
+     * Get the blocks at height {@code height}, from memory or else from the block store
+     */
+    public List<Block> getBlocksAtHeight(int height) {
+        List<Block> blocks = new ArrayList<>();
+        synchronized (lock) {
+            int maxHeight = tip.node.height;
+            if (height >= maxHeight - CUT_OFF_AGE) {
+                if (height <= maxHeight) {
+                    for (Node node : heights.get(height % (CUT_OFF_AGE + 1))) {
+                        blocks.add(node.block);
+                    }
+                }
+                return blocks;
+            }
+        }
+        if (blockStore == null) {
+            return blocks;
+        }
+        synchronized (blockStoreLock) {
+            blocks.addAll(blockStore.getBlocksAtHeight(height));
+            for (Node node : toStore) {
+                if (node.height == height) {
+                    blocks.add(node.block);
+                }
+            }
+        }
+        return blocks;
     }
 
     /**
-     * Get the UTXOPool for mining a new block on top of max height block
+     * Get the UTXOPool for mining a new block on top of max height block. The pool shares the UTXOs
+     * of the block chain and is obtained in constant time, without waiting for blocks being added.
      */
     public UTXOPool getMaxHeightUTXOPool() {
         // IMPLEMENT THIS
-        if (maxHeightBlock == null) {
-            return null;
-        }
+        return new UTXOPool(tip.utxoPool);
+    }
 
-        return maxHeightBlock.getUtxoPoolCopy();
+    /**
+     * Get the pool of the blocks waiting for their parent to be added
+     */
+    public OrphanPool getOrphanPool() {
+        return orphanPool;
     }
 
     /**
@@ -80,11 +405,28 @@ public class BlockChain {
      * block chain height is {@code <=
      * CUT_OFF_AGE + 1}. As soon as {@code height > CUT_OFF_AGE + 1}, you cannot create a new block
      * at height 2.
+     * <p>
+     * A block is not valid if one of its transactions does not have the hash of its contents, or
+     * has the same hash as another one.
+     * <p>
+     * A block whose parent is unknown is kept in the orphan pool, and added as soon as its parent
+     * is, along with the orphans waiting for it in turn.
+     * <p>
+     * Blocks may be added from several threads. They are validated concurrently, and only linked
+     * into the block chain one at a time.
      *
      * @return true if block is successfully added
      */
     public boolean addBlock(Block block) {
         // IMPLEMENT THIS
+        return addBlock(block, false);
+    }
+
+    /**
+     * Same as {@link #addBlock(Block)}, without checking the signatures of the transactions of
+     * {@code block} if {@code signaturesVerified}, because they were all found valid already
+     */
+    boolean addBlock(Block block, boolean signaturesVerified) {
         byte[] prevBlockHash = block.getPrevBlockHash();
         if (prevBlockHash == null) {
             return false;
@@ -92,15 +434,96 @@ public class BlockChain {
 
         Node parentNode = nodes.get(new ByteArrayWrapper(prevBlockHash));
         if (parentNode == null) {
+            // a parent in the block store is too old to be built upon, not missing
+            if (block.getHash() != null && !isStored(prevBlockHash)) {
+                orphanPool.addOrphan(block);
+                if (Metrics.ENABLED) {
+                    BLOCKS_ORPHANED.increment();
+                }
+                // the parent may have been added meanwhile, after its orphans were looked for
+                if (nodes.containsKey(new ByteArrayWrapper(prevBlockHash))) {
+                    connectOrphans(prevBlockHash);
+                }
+            }
             return false;
         }
 
-        UTXOPool parentUTXOPool = parentNode.getUtxoPoolCopy();
+        if (!connectBlock(block, parentNode, signaturesVerified)) {
+            return false;
+        }
+        connectOrphans(block.getHash());
+        return true;
+    }
+
+    /**
+     * @return true if the block whose hash is {@code hash} was pruned to the block store, or is
+     * being written to it
+     */
+    private boolean isStored(byte[] hash) {
+        // a node leaves unstored only once it is in the block store
+        return blockStore != null
+                && (unstored.containsKey(new ByteArrayWrapper(hash)) || blockStore.contains(hash));
+    }
+
+    /**
+     * Add the orphans waiting for the block whose hash is {@code hash}, then those waiting for
+     * them, and so on
+     */
+    private void connectOrphans(byte[] hash) {
+        ArrayDeque<byte[]> parents = new ArrayDeque<>();
+        parents.add(hash);
+        while (!parents.isEmpty()) {
+            byte[] parentHash = parents.poll();
+            for (Block child : orphanPool.removeChildren(parentHash)) {
+                Node parentNode = nodes.get(new ByteArrayWrapper(parentHash));
+                if (parentNode != null && connectBlock(child, parentNode, false)) {
+                    parents.add(child.getHash());
+                }
+            }
+        }
+    }
+
+    /**
+     * Add {@code block} on top of {@code parentNode} if it is valid
+     */
+    private boolean connectBlock(Block block, Node parentNode, boolean signaturesVerified) {
+        long start = Metrics.now();
+        boolean connected = tryConnectBlock(block, parentNode, signaturesVerified);
+        if (Metrics.ENABLED) {
+            ADD_NANOS.recordSince(start);
+            (connected ? BLOCKS_ADDED : BLOCKS_REJECTED).increment();
+        }
+        return connected;
+    }
+
+    /**
+     * Add {@code block} on top of {@code parentNode} if it is valid, timing each stage
+     */
+    private boolean tryConnectBlock(Block block, Node parentNode, boolean signaturesVerified) {
+        long time = Metrics.now();
+        UTXOPool parentUTXOPool;
+        synchronized (lock) {
+            parentUTXOPool = getUtxoPool(parentNode);
+        }
+        time = UTXO_POOL_NANOS.recordSince(time);
+        if (parentUTXOPool == null) {
+            return false;
+        }
 
-        TxHandler txHandler = new TxHandler(parentUTXOPool);
         Transaction[] transactions = block.getTransactions().toArray(new Transaction[0]);
+        // signatures are checked against the outputs of the transactions found by hash
+        if (!hasValidTransactionHashes(transactions)) {
+            return false;
+        }
+        if (!signaturesVerified && !signatureVerifier.verifyAll(transactions, parentUTXOPool)) {
+            return false;
+        }
+        time = VERIFY_NANOS.recordSince(time);
+
+        TxHandler txHandler = new TxHandler(parentUTXOPool, false);
 
         Transaction[] validTransactions = txHandler.handleTxs(transactions);
+        time = VALIDATE_NANOS.recordSince(time);
 
         if (validTransactions.length != transactions.length) {
             return false;
@@ -116,28 +539,68 @@ public class BlockChain {
             return false;
         }
 
-        for (Transaction transaction : block.getTransactions()) {
-            transactionPool.removeTransaction(transaction.getHash());
+        UTXOPool parentOutputs = getParentOutputs(parentUTXOPool, block);
+        UTXOPool tipUtxoPool = new UTXOPool(newUtxoPool);
+        time = UPDATE_NANOS.recordSince(time);
+        Checkpoint checkpoint = null;
+        boolean maxHeight;
+        synchronized (lock) {
+            // the parent may have become too old while the block was validated
+            if (parentNode.children == null) {
+                return false;
+            }
+            Node newNode = new Node(parentNode, block, parentOutputs);
+            maxHeight = newNode.height > tip.node.height;
+            if (Metrics.ENABLED) {
+                if (!maxHeight) {
+                    FORKS.increment();
+                } else if (parentNode != tip.node) {
+                    REORGS.increment();
+                }
+            }
+            if (maxHeight) {
+                // the pools cut off are computed from the previous max height block, which may be
+                // on one of the branches cut off
+                pruneHeight(newNode.height - CUT_OFF_AGE - 1, newNode);
+                tip = new Tip(newNode, tipUtxoPool);
+            }
+            addNode(newNode);
+            if (maxHeight && checkpointFile != null && newNode.height % checkpointInterval == 0) {
+                checkpoint = createCheckpoint();
+            }
         }
+        time = LINK_NANOS.recordSince(time);
 
-        Node newNode = new Node(parentNode, block, newUtxoPool);
-        nodes.put(new ByteArrayWrapper(block.getHash()), newNode);
-        if (newNode.height > maxHeight) {
-            maxHeightBlock = newNode;
-            maxHeight = newNode.height;
+        if (maxHeight) {
+            storePrunedNodes();
+            time = STORE_NANOS.recordSince(time);
+            updateTransactionPool();
+            TRANSACTION_POOL_NANOS.recordSince(time);
         }
+        if (checkpoint != null) {
+            writePeriodicCheckpoint(checkpoint);
+        }
+        return true;
+    }
 
-        if (maxHeight - heads.get(0).height > CUT_OFF_AGE) {
-            ArrayList<Node> newHeads = new ArrayList<>();
-            for (Node head : heads) {
-                for (Node child : head.children) {
-                    newHeads.add(child);
+    /**
+     * @return true if every transaction of {@code transactions} has the hash of its contents, and
+     *         no two of them have the same hash
+     */
+    private static boolean hasValidTransactionHashes(Transaction[] transactions) {
+        Set<ByteArrayWrapper> hashes = new HashSet<>();
+        for (Transaction tx : transactions) {
+            if (tx == null || tx.getHash() == null || !hashes.add(new ByteArrayWrapper(tx.getHash()))) {
+                return false;
+            }
+            if (!tx.isHashCurrent()) {
+                MessageDigest md = Crypto.sha256();
+                tx.updateDigest(md);
+                if (!Arrays.equals(md.digest(), tx.getHash())) {
+                    return false;
                 }
-                nodes.remove(new ByteArrayWrapper(head.block.getHash()));
             }
-            heads = newHeads;
         }
-
         return true;
     }
 
@@ -146,24 +609,428 @@ public class BlockChain {
      */
     public void addTransaction(Transaction tx) {
         // IMPLEMENT THIS
+        acceptTransaction(tx);
+    }
+
+    /**
+     * Add {@code tx} to the transaction pool if it is valid on top of the max height block, the
+     * outputs it claims being either in the max height UTXO pool or outputs of transactions of the
+     * transaction pool that no other transaction of the pool claims
+     *
+     * @return true if {@code tx} has been added to the transaction pool, false otherwise
+     */
+    public boolean acceptTransaction(Transaction tx) {
+        boolean accepted = tryAcceptTransaction(tx);
+        if (Metrics.ENABLED) {
+            (accepted ? TRANSACTIONS_ACCEPTED : TRANSACTIONS_REJECTED).increment();
+        }
+        return accepted;
+    }
+
+    private boolean tryAcceptTransaction(Transaction tx) {
+        if (transactionPool == null || tx == null || tx.getHash() == null) {
+            return false;
+        }
+        MessageDigest md = Crypto.sha256();
+        tx.updateDigest(md);
+        if (!Arrays.equals(md.digest(), tx.getHash())) {
+            return false;
+        }
+
+        // the outputs claimed by tx, and so the keys its signatures are checked against, are the
+        // same on every block, so the signatures are only checked once, without holding the lock.
+        // tx is checked against the max height pool and the pending outputs as they are, without
+        // copying the pool
+        if (!TxHandler.isValidTx(tx, tip.utxoPool, transactionPool)) {
+            return false;
+        }
+
+        synchronized (transactionPoolLock) {
+            if (transactionPool.getTransaction(tx.getHash()) != null) {
+                return false;
+            }
+            UTXOPool utxoPool = tip.utxoPool;
+            for (Transaction.Input input : tx.getInputs()) {
+                if (transactionPool.getSpender(input.getPrevTxHash(), input.getOutputIndex()) != null) {
+                    return false;
+                }
+                if (!utxoPool.contains(input.getPrevTxHash(), input.getOutputIndex())
+                        && getPendingOutput(input) == null) {
+                    return false;
+                }
+            }
+            // the pool refuses packages over its limits and may evict tx right away when full
+            return transactionPool.addTransaction(tx, getFee(tx));
+        }
+    }
+
+    /**
+     * @return the output claimed by {@code input} if it is an output of a transaction of the
+     * transaction pool, null otherwise
+     */
+    private Transaction.Output getPendingOutput(Transaction.Input input) {
+        if (input.getOutputIndex() < 0) {
+            return null;
+        }
+        Transaction prevTx = transactionPool.getTransaction(input.getPrevTxHash());
+        return prevTx == null ? null : prevTx.getOutput(input.getOutputIndex());
+    }
+
+    /**
+     * Bring the transaction pool up to date with the max height block. The transactions of the
+     * blocks connected since the last update are removed from the pool along with those claiming
+     * the same outputs, and the transactions of the blocks disconnected, if any, are added back to
+     * it when still valid. The transactions of the pool claiming outputs of the disconnected blocks
+     * that no longer exist are removed.
+     */
+    private void updateTransactionPool() {
         if (transactionPool == null) {
             return;
         }
+        synchronized (transactionPoolLock) {
+            Tip current = tip;
+            if (current.node == transactionPoolTip) {
+                return;
+            }
+            List<Block> disconnected = new ArrayList<Block>();
+            List<Block> connected = new ArrayList<Block>();
+            boolean forkFound;
+            synchronized (lock) {
+                forkFound = getBranches(transactionPoolTip, current.node, disconnected, connected);
+            }
+            transactionPoolTip = current.node;
+
+            for (int i = connected.size() - 1; i >= 0; i--) {
+                for (Transaction transaction : connected.get(i).getTransactions()) {
+                    transactionPool.removeTransaction(transaction.getHash());
+                    transactionPool.removeConflicts(transaction);
+                }
+            }
+            if (!forkFound) {
+                // the blocks below those collected are no longer in memory
+                removeUnclaimableTransactions();
+                return;
+            }
+
+            for (int i = disconnected.size() - 1; i >= 0; i--) {
+                for (Transaction transaction : disconnected.get(i).getTransactions()) {
+                    acceptTransaction(transaction);
+                }
+            }
+            for (Block block : disconnected) {
+                removeSpenders(block.getCoinbase(), current.utxoPool);
+                for (Transaction transaction : block.getTransactions()) {
+                    if (transactionPool.getTransaction(transaction.getHash()) == null) {
+                        removeSpenders(transaction, current.utxoPool);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Collect the blocks from {@code from} down to the last block it has in common with {@code to},
+     * in {@code disconnected}, and those from {@code to} down to that block, in {@code connected}
+     *
+     * @return false if the branches meet below the blocks in memory
+     */
+    private static boolean getBranches(Node from, Node to, List<Block> disconnected, List<Block> connected) {
+        while (from != to) {
+            if (from == null || to == null) {
+                return false;
+            }
+            if (from.height >= to.height) {
+                disconnected.add(from.block);
+                from = from.parent;
+            } else {
+                connected.add(to.block);
+                to = to.parent;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove the transactions of the pool claiming outputs of {@code tx} that are not in
+     * {@code utxoPool}, along with the transactions claiming their outputs
+     */
+    private void removeSpenders(Transaction tx, UTXOPool utxoPool) {
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            if (!utxoPool.contains(tx.getHash(), i)) {
+                transactionPool.removeSpender(tx.getHash(), i);
+            }
+        }
+    }
+
+    /**
+     * Remove the transactions of the pool claiming outputs that are neither in the max height UTXO
+     * pool nor outputs of other transactions of the pool, until there are none left. Only needed
+     * when the previous max height block is on a branch that forked below the blocks in memory.
+     */
+    private void removeUnclaimableTransactions() {
+        UTXOPool utxoPool = tip.utxoPool;
+        boolean removed = true;
+        while (removed) {
+            removed = false;
+            for (Transaction tx : transactionPool.getTransactions()) {
+                for (Transaction.Input input : tx.getInputs()) {
+                    if (!utxoPool.contains(input.getPrevTxHash(), input.getOutputIndex())
+                            && getPendingOutput(input) == null) {
+                        transactionPool.removeTransaction(tx.getHash());
+                        removed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the fee paid by {@code tx} when the outputs it claims are in the max height UTXO pool
+     * or the transaction pool, 0 otherwise
+     */
+    private long getFee(Transaction tx) {
+        UTXOPool utxoPool = tip.utxoPool;
+        long totalIn = 0;
+        for (Transaction.Input input : tx.getInputs()) {
+            Transaction.Output txOutput = utxoPool.getTxOutput(input.getPrevTxHash(), input.getOutputIndex());
+            if (txOutput == null) {
+                Transaction prevTx = transactionPool.getTransaction(input.getPrevTxHash());
+                txOutput = prevTx == null ? null : prevTx.getOutput(input.getOutputIndex());
+            }
+            if (txOutput == null) {
+                return 0;
+            }
+            totalIn += txOutput.getValue();
+        }
+
+        long totalOut = 0;
+        for (Transaction.Output output : tx.getOutputs()) {
+            totalOut += output.getValue();
+        }
+        return Math.max(0, totalIn - totalOut);
+    }
+
+    private void initHeights() {
+        heights = new ArrayList<>(CUT_OFF_AGE + 1);
+        for (int i = 0; i <= CUT_OFF_AGE; i++) {
+            heights.add(new ArrayList<Node>());
+        }
+    }
+
+    private void addNode(Node node) {
+        nodes.put(new ByteArrayWrapper(node.block.getHash()), node);
+        heights.get(node.height % (CUT_OFF_AGE + 1)).add(node);
+    }
+
+    /**
+     * Remove the nodes at {@code height}, which have become too old to be built upon, and cut the
+     * links to them so that they can be freed. The oldest block of each branch cut off from
+     * {@code maxHeightNode}, about to become the max height block, keeps the UTXO pool at it, as
+     * the blocks of the branch can no longer be reached from the max height block. The pools are
+     * computed from the current max height block, which reaches every block without such a pool.
+     */
+    private void pruneHeight(int height, Node maxHeightNode) {
+        if (height < 1) {
+            return;
+        }
+        List<Node> pruned = heights.get(height % (CUT_OFF_AGE + 1));
+        if (pruned.isEmpty() || pruned.get(0).height != height) {
+            return;
+        }
+        long start = Metrics.now();
+
+        Node maxHeightChain = maxHeightNode;
+        while (maxHeightChain != null && maxHeightChain.height > height + 1) {
+            maxHeightChain = maxHeightChain.parent;
+        }
+        for (Node node : pruned) {
+            for (Node child : node.children) {
+                if (child != maxHeightChain) {
+                    child.utxoPool = getUtxoPool(child);
+                }
+            }
+        }
+        for (Node node : pruned) {
+            for (Node child : node.children) {
+                child.parent = null;
+            }
+            node.children = null;
+            ByteArrayWrapper hash = new ByteArrayWrapper(node.block.getHash());
+            // the block is written to the block store by storePrunedNodes, once the lock is released
+            if (blockStore != null) {
+                unstored.put(hash, node);
+                toStore.add(node);
+            }
+            nodes.remove(hash);
+        }
+        pruned.clear();
+        PRUNE_NANOS.recordSince(start);
+    }
+
+    /**
+     * Write the nodes pruned so far to the block store, without holding {@code lock}
+     */
+    private void storePrunedNodes() {
+        if (blockStore == null) {
+            return;
+        }
+        synchronized (blockStoreLock) {
+            Node node;
+            while ((node = toStore.peek()) != null) {
+                blockStore.addBlock(node.block, node.height);
+                unstored.remove(new ByteArrayWrapper(node.block.getHash()));
+                toStore.poll();
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the UTXO pool at {@code node}, obtained by undoing the blocks from the max
+     * height block down to their common ancestor and then applying the blocks from there up to
+     * {@code node}, or null if they have no common ancestor. The walk stops early at a block of
+     * the branch of {@code node} which keeps the pool at it.
+     */
+    private UTXOPool getUtxoPool(Node node) {
+        UTXOPool nodeUtxoPool = new UTXOPool(this.tip.utxoPool);
+        Node tip = this.tip.node;
+        List<Node> toApply = new ArrayList<>();
+        while (tip != node) {
+            if (node.utxoPool != null) {
+                nodeUtxoPool = new UTXOPool(node.utxoPool);
+                break;
+            }
+            if (tip != null && tip.height >= node.height) {
+                undoBlock(nodeUtxoPool, tip);
+                tip = tip.parent;
+            } else if (node.parent != null) {
+                toApply.add(node);
+                node = node.parent;
+            } else {
+                return null;
+            }
+        }
+        for (int i = toApply.size() - 1; i >= 0; i--) {
+            applyBlock(nodeUtxoPool, toApply.get(i).block);
+        }
+        return nodeUtxoPool;
+    }
+
+    /**
+     * @return the outputs of {@code parentUtxoPool} spent or replaced by {@code block}
+     */
+    private static UTXOPool getParentOutputs(UTXOPool parentUtxoPool, Block block) {
+        UTXOPool parentOutputs = new UTXOPool();
+        for (Transaction tx : block.getTransactions()) {
+            for (Transaction.Input input : tx.getInputs()) {
+                addParentOutput(parentOutputs, parentUtxoPool, input.getPrevTxHash(), input.getOutputIndex());
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                addParentOutput(parentOutputs, parentUtxoPool, tx.getHash(), i);
+            }
+        }
+        addParentOutput(parentOutputs, parentUtxoPool, block.getCoinbase().getHash(), 0);
+        return parentOutputs;
+    }
+
+    private static void addParentOutput(UTXOPool parentOutputs, UTXOPool parentUtxoPool, byte[] txHash, int index) {
+        Transaction.Output txOutput = parentUtxoPool.getTxOutput(txHash, index);
+        if (txOutput != null) {
+            parentOutputs.addUTXO(new UTXO(txHash, index), txOutput);
+        }
+    }
+
+    /**
+     * Turn {@code utxoPool}, the UTXO pool at {@code node}, into the pool at its parent
+     */
+    private static void undoBlock(UTXOPool utxoPool, Node node) {
+        utxoPool.removeUTXO(new UTXO(node.block.getCoinbase().getHash(), 0));
+        for (Transaction tx : node.block.getTransactions()) {
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                utxoPool.removeUTXO(new UTXO(tx.getHash(), i));
+            }
+        }
+        for (UTXO utxo : node.parentOutputs.getAllUTXO()) {
+            utxoPool.addUTXO(utxo, node.parentOutputs.getTxOutput(utxo));
+        }
+    }
 
-        transactionPool.addTransaction(tx);
+    /**
+     * Apply the valid {@code block} to {@code utxoPool}
+     */
+    private static void applyBlock(UTXOPool utxoPool, Block block) {
+        for (Transaction tx : block.getTransactions()) {
+            for (Transaction.Input input : tx.getInputs()) {
+                utxoPool.removeUTXO(new UTXO(input.getPrevTxHash(), input.getOutputIndex()));
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                utxoPool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            }
+        }
+        Transaction coinbaseTx = block.getCoinbase();
+        utxoPool.addUTXO(new UTXO(coinbaseTx.getHash(), 0), coinbaseTx.getOutput(0));
     }
 
+    /**
+     * The max height block and the UTXO pool at it, which must not be modified
+     */
+    static class Tip {
+        final Node node;
+        final UTXOPool utxoPool;
+
+        Tip(Node node, UTXOPool utxoPool) {
+            this.node = node;
+            this.utxoPool = utxoPool;
+        }
+
+        Block getBlock() {
+            return node.block;
+        }
+
+        /** @return a copy of the UTXO pool at the block */
+        UTXOPool getUTXOPool() {
+            return new UTXOPool(utxoPool);
+        }
+    }
+
+    /**
+     * A gauge read from a block chain it only refers to weakly, which reads 0 once the block chain
+     * is collected
+     */
+    private abstract static class ChainGauge implements Metrics.Gauge {
+        private final WeakReference<BlockChain> blockChain;
+
+        ChainGauge(BlockChain blockChain) {
+            this.blockChain = new WeakReference<>(blockChain);
+        }
+
+        @Override
+        public long get() {
+            BlockChain chain = blockChain.get();
+            return chain == null ? 0 : get(chain);
+        }
+
+        abstract long get(BlockChain blockChain);
+    }
+
+    /**
+     * A block of the block chain. Instead of the UTXO pool at the block, it records the outputs of
+     * the pool of its parent spent or replaced by the block, which together with the outputs
+     * created by the block are the changes it made to the pool.
+     */
     class Node {
         Node parent;
         List<Node> children;
         Block block;
+        UTXOPool parentOutputs;
+        /** UTXO pool at the block if it is the oldest block of a branch cut off by pruning, or null */
         UTXOPool utxoPool;
         int height;
 
-        public Node(Node parent, Block block, UTXOPool utxoPool) {
+        public Node(Node parent, Block block, UTXOPool parentOutputs) {
             this.parent = parent;
             this.block = block;
-            this.utxoPool = utxoPool;
+            this.parentOutputs = parentOutputs;
             children = new ArrayList<>();
 
             if (parent != null) {
@@ -173,9 +1040,5 @@ public class BlockChain {
                 height = 1;
             }
         }
-
-        public UTXOPool getUtxoPoolCopy() {
-            return new UTXOPool(utxoPool);
-        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * Binary encoding of whole blocks, signatures and public keys included, from which a block equal
+ * to the original one, with the same hash, can be rebuilt. Every variable-length field is
+ * prefixed by its length, -1 standing for null.
+ * <p>
+ * An encoding starts with the version of the format. Version 2 writes the values of the outputs as
+ * longs in base units; the encodings written before, with values in bitcoins as doubles, had no
+ * version and are rejected.
+ */
+class BlockCodec {
+
+    private static final int VERSION = 2;
+
+    private BlockCodec() {
+    }
+
+    static byte[] encode(Block block) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(VERSION);
+            writeBytes(out, block.getHash());
+            writeBytes(out, block.getPrevBlockHash());
+            Transaction coinbase = block.getCoinbase();
+            writeBytes(out, coinbase.getOutput(0).getInternedAddress().getEncoded());
+            out.writeInt(block.getTransactions().size());
+            for (Transaction tx : block.getTransactions())
+                writeTransaction(out, tx);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the block encoded in {@code encoded}
+     * @throws IOException if {@code encoded} is not a valid encoding of the current version, or
+     *         the rebuilt block does not have the hash it was encoded with
+     */
+    static Block decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported block encoding version " + version + ", version " + VERSION
+                    + " expected");
+        byte[] hash = readBytes(in);
+        byte[] prevBlockHash = readBytes(in);
+        Block block = new Block(prevBlockHash, readKey(in));
+        int numTxs = in.readInt();
+        for (int i = 0; i < numTxs; i++)
+            block.addTransaction(readTransaction(in));
+        block.finalize();
+        if (!Arrays.equals(hash, block.getHash()))
+            throw new IOException("block does not match its hash");
+        return block;
+    }
+
+    private static void writeTransaction(DataOutputStream out, Transaction tx) throws IOException {
+        writeBytes(out, tx.getHash());
+        out.writeInt(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            writeBytes(out, in.getPrevTxHash());
+            out.writeInt(in.getOutputIndex());
+            writeBytes(out, in.getSignature());
+        }
+        out.writeInt(tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            out.writeLong(op.getValue());
+            writeBytes(out, op.getInternedAddress().getEncoded());
+        }
+    }
+
+    private static Transaction readTransaction(DataInputStream in) throws IOException {
+        Transaction tx = new Transaction();
+        byte[] hash = readBytes(in);
+        int numInputs = in.readInt();
+        for (int i = 0; i < numInputs; i++) {
+            tx.addInput(readBytes(in), in.readInt());
+            tx.getInput(i).addSignature(readBytes(in));
+        }
+        int numOutputs = in.readInt();
+        for (int i = 0; i < numOutputs; i++) {
+            long value = in.readLong();
+            tx.addOutput(value, readKey(in));
+        }
+        tx.finalize();
+        // keep the hash the transaction was given, should it not be the hash of its contents
+        if (!Arrays.equals(hash, tx.getHash()))
+            tx.setHash(hash);
+        return tx;
+    }
+
+    /** @return the key encoded next, decoded only if it is not interned yet */
+    private static PublicKey readKey(DataInputStream in) throws IOException {
+        byte[] encoded = readBytes(in);
+        if (encoded == null)
+            throw new IOException("missing public key");
+        try {
+            return AddressTable.getDefault().decode(encoded).getKey();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("invalid public key", e);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        if (length > in.available())
+            throw new IOException("truncated block");
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+}
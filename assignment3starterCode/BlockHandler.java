@@ -1,8 +1,18 @@
 
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class BlockHandler {
 
+    /** Maximum number of transactions, besides the coinbase, of a block created by this handler */
+    public static final int MAX_BLOCK_TXS = 1000;
+
+    /** Maximum number of blocks waiting at each stage of {@link #processBlocks} */
+    private static final int PIPELINE_CAPACITY = 64;
+
     private BlockChain blockChain;
 
     /** assume blockChain has the genesis block */
@@ -21,16 +31,52 @@ public class BlockHandler {
         return blockChain.addBlock(block);
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * add {@code blocks} to the block chain in order, checking the blocks not added yet while the
+     * first ones are added
+     * 
+     * @return for each block, true if it is valid and has been added, false otherwise
+     */
+    public boolean[] processBlocks(List<Block> blocks) throws InterruptedException {
+        BlockPipeline pipeline = new BlockPipeline(blockChain, PIPELINE_CAPACITY,
+                Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(blocks.size());
+            for (Block block : blocks)
+                results.add(block == null ? null : pipeline.submit(block));
+            boolean[] added = new boolean[blocks.size()];
+            for (int i = 0; i < added.length; i++) {
+                if (results.get(i) != null)
+                    added[i] = results.get(i).get();
+            }
+            return added;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    /**
+     * create a new {@code block} over the max height {@code block}, with the valid transactions
+     * among the {@code MAX_BLOCK_TXS} of the transaction pool paying the best fee rates
+     */
     public Block createBlock(PublicKey myAddress) {
-        Block parent = blockChain.getMaxHeightBlock();
+        // the parent and its pool are read at once, as a block may be added meanwhile
+        BlockChain.Tip tip = blockChain.getTip();
+        Block parent = tip.getBlock();
         byte[] parentHash = parent.getHash();
         Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
+        UTXOPool uPool = tip.getUTXOPool();
         TransactionPool txPool = blockChain.getTransactionPool();
         TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
+        Transaction[] txs = txPool.getBestTransactions(MAX_BLOCK_TXS).toArray(new Transaction[0]);
+        Transaction[] rTxs = handler.handleTxsInParallel(txs);
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
 
@@ -0,0 +1,289 @@
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Adds blocks to a block chain in stages, so that the checks of the blocks submitted last run
+ * while the blocks submitted first are added:
+ * <ol>
+ * <li>the hash of the block is checked against its contents,</li>
+ * <li>the checks that do not depend on the UTXO pool are made on each transaction: its hash, the
+ * values of its outputs and the outputs claimed by its inputs,</li>
+ * <li>the signatures are verified, all at once, as long as the outputs they are checked against
+ * are in the max height UTXO pool or among the transactions of the blocks in the pipeline. An
+ * output is identified by the hash of its transaction, so it is the same on every branch.</li>
+ * <li>the blocks are added to the block chain, in the order they were submitted.</li>
+ * </ol>
+ * Every stage takes its blocks from a queue of at most {@code queueCapacity} blocks, and
+ * {@link #submit} waits once the first one is full. A block whose stage fails with an error, rather
+ * than finding it invalid, has its result completed with the error.
+ */
+public class BlockPipeline {
+
+    private final BlockChain blockChain;
+    private final SignatureVerifier signatureVerifier;
+
+    private final BlockingQueue<Task> hashQueue;
+    private final BlockingQueue<Task> checkQueue;
+    private final BlockingQueue<Task> verifyQueue;
+    private final BlockingQueue<Task> connectQueue;
+    private final List<Thread> threads;
+
+    /**
+     * Transactions of the blocks in the pipeline that passed the second stage, whose outputs
+     * signatures may be checked against
+     */
+    private final Map<ByteArrayWrapper, Transaction> pending;
+    private long nextSequence;
+    /** Tasks submitted whose block has not gone through the last stage yet, by sequence number */
+    private final Map<Long, Task> inFlight;
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a pipeline adding blocks to {@code blockChain}, with {@code parallelism} threads for
+     * each of the first three stages
+     */
+    public BlockPipeline(BlockChain blockChain, int queueCapacity, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        this.blockChain = blockChain;
+        signatureVerifier = new SignatureVerifier();
+        hashQueue = new ArrayBlockingQueue<Task>(queueCapacity);
+        checkQueue = new ArrayBlockingQueue<Task>(queueCapacity);
+        verifyQueue = new ArrayBlockingQueue<Task>(queueCapacity);
+        connectQueue = new ArrayBlockingQueue<Task>(queueCapacity);
+        pending = new ConcurrentHashMap<ByteArrayWrapper, Transaction>();
+        inFlight = new ConcurrentHashMap<Long, Task>();
+        threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < parallelism; i++) {
+            start(new Stage(hashQueue, checkQueue) {
+                @Override
+                boolean process(Task task) {
+                    return hasValidHash(task.block);
+                }
+            }, "hash-" + i);
+            start(new Stage(checkQueue, verifyQueue) {
+                @Override
+                boolean process(Task task) {
+                    if (!hasValidTransactions(task.block))
+                        return false;
+                    for (Transaction tx : task.block.getTransactions())
+                        pending.put(new ByteArrayWrapper(tx.getHash()), tx);
+                    return true;
+                }
+            }, "check-" + i);
+            start(new Stage(verifyQueue, connectQueue) {
+                @Override
+                boolean process(Task task) {
+                    return verifySignatures(task);
+                }
+            }, "verify-" + i);
+        }
+        start(new Connector(), "connect");
+    }
+
+    /**
+     * Submits {@code block} to be added to the block chain after the blocks submitted before it,
+     * waiting for room in the pipeline if needed
+     *
+     * @return whether the block is added: false if its hash is not the hash of its contents,
+     *         otherwise as returned by {@link BlockChain#addBlock}
+     * @throws IllegalStateException if the pipeline is shut down
+     */
+    public synchronized Future<Boolean> submit(Block block) throws InterruptedException {
+        Task task = new Task(block, nextSequence++);
+        inFlight.put(task.sequence, task);
+        // shutdown fails the tasks in flight once set, so either fails this one
+        if (shutdown) {
+            inFlight.remove(task.sequence);
+            throw new IllegalStateException("pipeline is shut down");
+        }
+        hashQueue.put(task);
+        return task.result;
+    }
+
+    /**
+     * Stops the threads of the pipeline. The blocks still in the pipeline are not added, and their
+     * results fail with an {@link IllegalStateException}.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Thread thread : threads)
+            thread.interrupt();
+        // makes room for a submit waiting for the first stage
+        hashQueue.clear();
+        for (Task task : inFlight.values())
+            task.result.completeExceptionally(new IllegalStateException("pipeline is shut down"));
+        inFlight.clear();
+    }
+
+    private void start(Runnable stage, String name) {
+        Thread thread = new Thread(stage, "block-pipeline-" + name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /** @return true if the hash of {@code block} is the hash of its contents */
+    private static boolean hasValidHash(Block block) {
+        if (block.getHash() == null)
+            return false;
+        MessageDigest md = Crypto.sha256();
+        if (block.getPrevBlockHash() != null)
+            md.update(block.getPrevBlockHash());
+        for (Transaction tx : block.getTransactions())
+            tx.updateDigest(md);
+        return Arrays.equals(md.digest(), block.getHash());
+    }
+
+    /**
+     * @return true if every transaction of {@code block} has the hash of its contents, outputs of
+     *         non-negative value and does not claim the same output twice
+     */
+    private static boolean hasValidTransactions(Block block) {
+        for (Transaction tx : block.getTransactions()) {
+            MessageDigest md = Crypto.sha256();
+            tx.updateDigest(md);
+            if (!Arrays.equals(md.digest(), tx.getHash()))
+                return false;
+            for (Transaction.Output output : tx.getOutputs()) {
+                if (output.getValue() < 0)
+                    return false;
+            }
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                for (int j = 0; j < i; j++) {
+                    Transaction.Input other = tx.getInput(j);
+                    if (other.getOutputIndex() == input.getOutputIndex()
+                            && Arrays.equals(other.getPrevTxHash(), input.getPrevTxHash()))
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verifies the signatures of the block of {@code task}, provided all of the outputs they are
+     * checked against can be found; otherwise the block chain verifies them when adding the block
+     *
+     * @return false if a signature is invalid
+     */
+    private boolean verifySignatures(Task task) {
+        UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+        Transaction[] txs = task.block.getTransactions().toArray(new Transaction[0]);
+        for (Transaction tx : txs) {
+            for (Transaction.Input input : tx.getInputs()) {
+                if (utxoPool.contains(input.getPrevTxHash(), input.getOutputIndex()))
+                    continue;
+                Transaction prevTx = pending.get(new ByteArrayWrapper(input.getPrevTxHash()));
+                if (prevTx == null || prevTx.getOutput(input.getOutputIndex()) == null)
+                    return true;
+            }
+        }
+        if (!signatureVerifier.verifyAll(txs, utxoPool, pending))
+            return false;
+        task.signaturesVerified = true;
+        return true;
+    }
+
+    private static class Task {
+        final Block block;
+        final long sequence;
+        final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        /** whether the block was found invalid by one of the stages */
+        volatile boolean rejected;
+        volatile boolean signaturesVerified;
+
+        Task(Block block, long sequence) {
+            this.block = block;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A stage taking the blocks from {@code in} and passing them to {@code out}, marking those it
+     * finds invalid as rejected. Rejected blocks go through the other stages as they are, to keep
+     * the blocks added in order.
+     */
+    private abstract static class Stage implements Runnable {
+        private final BlockingQueue<Task> in;
+        private final BlockingQueue<Task> out;
+
+        Stage(BlockingQueue<Task> in, BlockingQueue<Task> out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        /** @return false if the block of {@code task} is invalid */
+        abstract boolean process(Task task);
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Task task = in.take();
+                    try {
+                        if (!task.rejected && !process(task))
+                            task.rejected = true;
+                    } catch (RuntimeException e) {
+                        task.rejected = true;
+                    } catch (Throwable e) {
+                        // the block is not known to be invalid, and the thread goes on
+                        task.rejected = true;
+                        task.result.completeExceptionally(e);
+                    }
+                    out.put(task);
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }
+    }
+
+    /** Adds the blocks to the block chain in the order they were submitted */
+    private class Connector implements Runnable {
+        private final HashMap<Long, Task> waiting = new HashMap<Long, Task>();
+        private long next;
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Task task = connectQueue.take();
+                    waiting.put(task.sequence, task);
+                    for (task = waiting.remove(next); task != null; task = waiting.remove(next)) {
+                        next++;
+                        connect(task);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }
+
+        private void connect(Task task) {
+            try {
+                boolean added = !task.rejected && blockChain.addBlock(task.block, task.signaturesVerified);
+                task.result.complete(added);
+            } catch (Throwable e) {
+                task.result.completeExceptionally(e);
+            } finally {
+                inFlight.remove(task.sequence);
+                for (Transaction tx : task.block.getTransactions()) {
+                    if (tx.getHash() != null)
+                        pending.remove(new ByteArrayWrapper(tx.getHash()), tx);
+                }
+            }
+        }
+    }
+}
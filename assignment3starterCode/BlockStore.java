@@ -0,0 +1,246 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An append-only store of blocks on disk. Blocks are appended to segment files of at most
+ * {@code SEGMENT_SIZE} bytes, and an index file records the hash, height and location of each of
+ * them, so that a block can be read back by its hash or height without keeping it in memory. The
+ * index is read back when the store is reopened; {@link #force()} makes sure the blocks added so
+ * far are on disk.
+ * <p>
+ * A block is forced to its segment before its index record is written, so that the index never
+ * refers to a block that is not on disk; a record cut short is dropped on reopening. The index
+ * and the segments start with a header giving their format version, and a store written in
+ * another format is rejected rather than misread.
+ * <p>
+ * Only blocks with 32-byte hashes can be stored. A store is thread-safe.
+ */
+public class BlockStore {
+
+    private static final int HASH_LENGTH = 32;
+    private static final int INDEX_MAGIC = 0x424C4B49;
+    private static final int SEGMENT_MAGIC = 0x424C4B53;
+    private static final int VERSION = 1;
+    /** Size of the header of the index and of the segments: a magic number and the version */
+    private static final int HEADER_SIZE = 8;
+    /** Size beyond which a segment file is no longer appended to */
+    private static final long SEGMENT_SIZE = 64L << 20;
+
+    private static final int INDEX_RECORD_SIZE = HASH_LENGTH + 4 + 4 + 8 + 4;
+
+    private final File directory;
+    private final RandomAccessFile indexFile;
+
+    private final HashMap<ByteArrayWrapper, Location> locations;
+    private final HashMap<Integer, List<Location>> locationsByHeight;
+    private int maxHeight;
+
+    /** Segment files opened so far, by number. The last one is appended to */
+    private final HashMap<Integer, FileChannel> segments;
+    private int segment;
+    private long segmentSize;
+
+    /** Opens the store kept in {@code directory}, creating an empty one if there is none */
+    public BlockStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create " + directory);
+        this.directory = directory;
+        locations = new HashMap<ByteArrayWrapper, Location>();
+        locationsByHeight = new HashMap<Integer, List<Location>>();
+        segments = new HashMap<Integer, FileChannel>();
+
+        File index = new File(directory, "index.dat");
+        readIndex(index);
+        indexFile = new RandomAccessFile(index, "rw");
+        if (indexFile.length() == 0) {
+            indexFile.writeInt(INDEX_MAGIC);
+            indexFile.writeInt(VERSION);
+        }
+        // drop the record that was being written, if the store was not closed properly
+        indexFile.setLength(HEADER_SIZE + locations.size() * (long) INDEX_RECORD_SIZE);
+        indexFile.seek(indexFile.length());
+
+        while (segmentFile(segment + 1).exists())
+            segment++;
+        segmentSize = segment(segment).size();
+    }
+
+    /**
+     * Appends {@code block}, found at height {@code height} of the block chain, to the store
+     * unless it is already there
+     */
+    public synchronized void addBlock(Block block, int height) {
+        byte[] hash = block.getHash();
+        if (hash.length != HASH_LENGTH)
+            throw new IllegalArgumentException("block hashes must be " + HASH_LENGTH + " bytes long");
+        ByteArrayWrapper key = new ByteArrayWrapper(hash);
+        if (locations.containsKey(key))
+            return;
+
+        byte[] encoded = BlockCodec.encode(block);
+        try {
+            if (segmentSize > HEADER_SIZE && segmentSize + encoded.length > SEGMENT_SIZE) {
+                segment++;
+                segmentSize = HEADER_SIZE;
+            }
+            FileChannel channel = segment(segment);
+            ByteBuffer b = ByteBuffer.wrap(encoded);
+            while (b.hasRemaining())
+                channel.write(b, segmentSize + b.position());
+            // the block is on disk before the index refers to it
+            channel.force(false);
+
+            Location location = new Location(height, segment, segmentSize, encoded.length);
+            ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+            record.put(hash).putInt(height).putInt(segment).putLong(segmentSize).putInt(encoded.length);
+            indexFile.write(record.array());
+
+            segmentSize += encoded.length;
+            add(key, location);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the block whose hash is {@code hash}, or null if it is not in the store */
+    public synchronized Block getBlock(byte[] hash) {
+        Location location = locations.get(new ByteArrayWrapper(hash));
+        return location == null ? null : read(location);
+    }
+
+    /** @return the blocks of the store at height {@code height}, in the order they were added */
+    public synchronized List<Block> getBlocksAtHeight(int height) {
+        List<Block> blocks = new ArrayList<Block>();
+        List<Location> atHeight = locationsByHeight.get(height);
+        if (atHeight != null) {
+            for (Location location : atHeight)
+                blocks.add(read(location));
+        }
+        return blocks;
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        return locations.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    /** @return the height of the highest block in the store, 0 if it is empty */
+    public synchronized int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    /** Writes the blocks added to the store so far to disk */
+    public synchronized void force() throws IOException {
+        segment(segment).force(false);
+        indexFile.getChannel().force(false);
+    }
+
+    public synchronized void close() throws IOException {
+        force();
+        for (FileChannel channel : segments.values())
+            channel.close();
+        indexFile.close();
+    }
+
+    private Block read(Location location) {
+        try {
+            ByteBuffer b = ByteBuffer.allocate(location.length);
+            FileChannel channel = segment(location.segment);
+            while (b.hasRemaining()) {
+                if (channel.read(b, location.offset + b.position()) < 0)
+                    throw new IOException("truncated segment " + location.segment);
+            }
+            return BlockCodec.decode(b.array());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void add(ByteArrayWrapper hash, Location location) {
+        locations.put(hash, location);
+        List<Location> atHeight = locationsByHeight.get(location.height);
+        if (atHeight == null) {
+            atHeight = new ArrayList<Location>(1);
+            locationsByHeight.put(location.height, atHeight);
+        }
+        atHeight.add(location);
+        maxHeight = Math.max(maxHeight, location.height);
+    }
+
+    private void readIndex(File index) throws IOException {
+        if (!index.exists())
+            return;
+        if (index.length() < HEADER_SIZE)
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION)
+                throw new IOException("not a block store index, or written in another format: " + index);
+            byte[] hash = new byte[HASH_LENGTH];
+            for (long n = (index.length() - HEADER_SIZE) / INDEX_RECORD_SIZE; n > 0; n--) {
+                in.readFully(hash);
+                int height = in.readInt();
+                int segment = in.readInt();
+                long offset = in.readLong();
+                int length = in.readInt();
+                add(new ByteArrayWrapper(hash), new Location(height, segment, offset, length));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** @return the segment file {@code number}, whose header is written or checked on opening */
+    private FileChannel segment(int number) throws IOException {
+        FileChannel channel = segments.get(number);
+        if (channel == null) {
+            File file = segmentFile(number);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() == 0) {
+                header.putInt(SEGMENT_MAGIC).putInt(VERSION).flip();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+            } else {
+                channel.read(header, 0);
+                if (header.hasRemaining() || header.getInt(0) != SEGMENT_MAGIC || header.getInt(4) != VERSION) {
+                    channel.close();
+                    throw new IOException("not a block store segment, or written in another format: " + file);
+                }
+            }
+            segments.put(number, channel);
+        }
+        return channel;
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format("blocks-%05d.dat", number));
+    }
+
+    private static class Location {
+        final int height;
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int height, int segment, long offset, int length) {
+            this.height = height;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A snapshot of a block chain from which it can be restarted without replaying its blocks: the
+ * UTXO pool at the max height block, and the blocks still in memory. Each block comes with the
+ * outputs of the pool of its parent it spent or replaced, so that the pools below the max height
+ * block can be rebuilt by undoing the blocks one by one.
+ * <p>
+ * The snapshot is streamed to and from disk. Public keys are written once, the first time they
+ * are used, and referred to by their id afterwards. A checkpoint starts with its format version:
+ * version 2 writes the values of the outputs as longs in base units, and the checkpoints of
+ * version 1, with values in bitcoins as doubles, are rejected.
+ */
+class Checkpoint {
+
+    private static final int MAGIC = 0x43484B50;
+    private static final int VERSION = 2;
+
+    /** UTXO pool at the max height block */
+    UTXOPool utxoPool;
+    /** Blocks in memory, parents first */
+    final List<Block> blocks = new ArrayList<Block>();
+    /** For each block, the index of its parent in {@code blocks}, or -1 */
+    final List<Integer> parents = new ArrayList<Integer>();
+    final List<Integer> heights = new ArrayList<Integer>();
+    /**
+     * For each block, the outputs of the pool of its parent spent by the block, or replaced by an
+     * output of the block with the same UTXO, such as the coinbase of an earlier block paying to
+     * the same address
+     */
+    final List<UTXOPool> parentOutputs = new ArrayList<UTXOPool>();
+    /** Index in {@code blocks} of the max height block */
+    int maxHeightBlock;
+
+    /** Owner of the outputs read from a checkpoint, which are not tied to a transaction */
+    private static final Transaction OUTPUTS = new Transaction();
+
+    /**
+     * Writes {@code checkpoint} to {@code file}, replacing it only once the new checkpoint is
+     * complete
+     */
+    static void write(Checkpoint checkpoint, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            KeyWriter keys = new KeyWriter();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writePool(out, keys, checkpoint.utxoPool);
+            out.writeInt(checkpoint.blocks.size());
+            for (int i = 0; i < checkpoint.blocks.size(); i++) {
+                out.writeInt(checkpoint.parents.get(i));
+                out.writeInt(checkpoint.heights.get(i));
+                byte[] block = BlockCodec.encode(checkpoint.blocks.get(i));
+                out.writeInt(block.length);
+                out.write(block);
+                writePool(out, keys, checkpoint.parentOutputs.get(i));
+            }
+            out.writeInt(checkpoint.maxHeightBlock);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static Checkpoint read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a checkpoint: " + file);
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported checkpoint version " + version + ", version " + VERSION
+                        + " expected: " + file);
+            List<PublicKey> keys = new ArrayList<PublicKey>();
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.utxoPool = readPool(in, keys);
+            int numBlocks = in.readInt();
+            for (int i = 0; i < numBlocks; i++) {
+                checkpoint.parents.add(in.readInt());
+                checkpoint.heights.add(in.readInt());
+                byte[] block = new byte[in.readInt()];
+                in.readFully(block);
+                checkpoint.blocks.add(BlockCodec.decode(block));
+                checkpoint.parentOutputs.add(readPool(in, keys));
+            }
+            checkpoint.maxHeightBlock = in.readInt();
+            return checkpoint;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writePool(DataOutputStream out, KeyWriter keys, UTXOPool pool) throws IOException {
+        ArrayList<UTXO> allUTXO = pool.getAllUTXO();
+        out.writeInt(allUTXO.size());
+        for (UTXO ut : allUTXO) {
+            Transaction.Output txOut = pool.getTxOutput(ut);
+            byte[] txHash = ut.getTxHash();
+            out.writeInt(txHash.length);
+            out.write(txHash);
+            out.writeInt(ut.getIndex());
+            out.writeLong(txOut.getValue());
+            keys.write(out, txOut.getInternedAddress());
+        }
+    }
+
+    private static UTXOPool readPool(DataInputStream in, List<PublicKey> keys) throws IOException {
+        UTXOPool pool = new UTXOPool();
+        for (int n = in.readInt(); n > 0; n--) {
+            byte[] txHash = new byte[in.readInt()];
+            in.readFully(txHash);
+            int index = in.readInt();
+            long value = in.readLong();
+            pool.addUTXO(new UTXO(txHash, index), OUTPUTS.new Output(value, readKey(in, keys)));
+        }
+        return pool;
+    }
+
+    /**
+     * Reads the id of a key, followed by its X.509 encoding if it is the first time the key is
+     * used
+     */
+    private static PublicKey readKey(DataInputStream in, List<PublicKey> keys) throws IOException {
+        int id = in.readInt();
+        if (id < keys.size())
+            return keys.get(id);
+        if (id != keys.size())
+            throw new IOException("unknown key " + id);
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        try {
+            keys.add(AddressTable.getDefault().decode(encoded).getKey());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("invalid public key", e);
+        }
+        return keys.get(id);
+    }
+
+    /** Assigns ids to the addresses written so far */
+    private static class KeyWriter {
+        private final IdentityHashMap<AddressTable.Address, Integer> ids = new IdentityHashMap<AddressTable.Address, Integer>();
+
+        void write(DataOutputStream out, AddressTable.Address address) throws IOException {
+            Integer id = ids.get(address);
+            if (id == null) {
+                id = ids.size();
+                ids.put(address, id);
+                byte[] encoded = address.getEncoded();
+                out.writeInt(id);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+                return;
+            }
+            out.writeInt(id);
+        }
+    }
+}
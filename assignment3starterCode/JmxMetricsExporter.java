@@ -0,0 +1,104 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers the metrics with the platform MBean server as an MBean with one read-only attribute
+ * per value of {@link Metrics#snapshot()}, read when the attribute is. Metrics created after the
+ * export show up the next time the MBean is inspected.
+ */
+public class JmxMetricsExporter implements MetricsExporter {
+
+    public static final String DEFAULT_NAME = "cryptocurrency:type=Metrics";
+
+    private final ObjectName name;
+
+    public JmxMetricsExporter() throws JMException {
+        this(new ObjectName(DEFAULT_NAME));
+    }
+
+    public JmxMetricsExporter(ObjectName name) {
+        this.name = name;
+    }
+
+    /** Registers {@code metrics} under the name of this exporter, instead of the MBean registered under it if any */
+    @Override
+    public void export(Metrics metrics) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+        server.registerMBean(new MetricsMBean(metrics), name);
+    }
+
+    /** Unregisters the MBean registered by {@link #export}, if any */
+    public void unexport() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+    }
+
+    private static class MetricsMBean implements DynamicMBean {
+        private final Metrics metrics;
+
+        MetricsMBean(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = metrics.snapshot().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            SortedMap<String, Number> snapshot = metrics.snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = snapshot.get(attribute);
+                if (value != null)
+                    list.add(new Attribute(attribute, value));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String, Number> metric : metrics.snapshot().entrySet()) {
+                String type = metric.getValue().getClass().getName();
+                attributes.add(new MBeanAttributeInfo(metric.getKey(), type, metric.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Block and transaction processing metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
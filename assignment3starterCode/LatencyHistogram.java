@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations, in nanoseconds, in buckets whose width grows with the values they hold, in the
+ * manner of HdrHistogram: the values from {@code 2^e} to {@code 2^(e+1)} are split into
+ * {@code SUB_BUCKETS} buckets of the same width, so that a percentile is known within 1 /
+ * {@code SUB_BUCKETS} of its value whatever its magnitude. Values below {@code SUB_BUCKETS} are
+ * counted exactly.
+ * <p>
+ * Recording a value takes constant time, allocates nothing and takes no lock, so a histogram can
+ * be recorded to from several threads at once. Its statistics are read without stopping them, so
+ * they may miss the values being recorded meanwhile.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Enough buckets for any non-negative long */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Counts {@code nanos}, clamped to 0 if negative */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        long previous;
+        while ((previous = max.get()) < nanos && !max.compareAndSet(previous, nanos))
+            ;
+    }
+
+    /**
+     * Counts the time elapsed since {@code start}, a value of {@link Metrics#now()}, if metrics are
+     * enabled
+     *
+     * @return the current time, to measure the next step from, or 0 if metrics are disabled
+     */
+    public long recordSince(long start) {
+        if (!Metrics.ENABLED)
+            return 0;
+        long now = System.nanoTime();
+        record(now - start);
+        return now;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** @return the mean of the values counted, or 0 if there are none */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the highest value of the bucket holding the value below which {@code percentile}
+     *         percent of the values counted are, or 0 if there are none
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    /** Forgets the values counted so far */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
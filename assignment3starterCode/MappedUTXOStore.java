@@ -0,0 +1,387 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * A set of UTXOs kept outside of the heap, in a memory-mapped file of fixed-size records forming
+ * an open-addressing hash table. The public keys the outputs pay to are stored once each in a
+ * second file and referred to by their id. Both files are reopened as they were left, so the set
+ * survives restarts; {@link #force()} makes sure the changes made so far are on disk.
+ * <p>
+ * A key is written and forced to disk before the first record referring to it, so that a record
+ * that reached disk never refers to a missing key. A key cut short by a crash, which no record can
+ * refer to, is dropped when the store is reopened.
+ * <p>
+ * Only UTXOs of transactions with 32-byte hashes can be stored. A store is not thread-safe. The
+ * block chain does not use it: the copies of a {@link UTXOPool} backed by a store can only be read
+ * as long as the store is not modified, while the block chain keeps copies of its pools across
+ * blocks.
+ */
+public class MappedUTXOStore {
+
+    private static final int MAGIC = 0x5554584F;
+    private static final int VERSION = 2;
+    private static final int HASH_LENGTH = 32;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+
+    private static final int USED_OFFSET = 0;
+    private static final int HASH_OFFSET = 1;
+    private static final int INDEX_OFFSET = HASH_OFFSET + HASH_LENGTH;
+    private static final int VALUE_OFFSET = INDEX_OFFSET + 4;
+    private static final int KEY_OFFSET = VALUE_OFFSET + 8;
+    private static final int RECORD_SIZE = KEY_OFFSET + 4;
+
+    private static final int MIN_CAPACITY = 1024;
+    /** Largest number of records a single mapping can hold */
+    private static final int MAX_CAPACITY = 1 << 25;
+
+    /** Owner of the outputs read from the store, which are not tied to a transaction */
+    private static final Transaction OUTPUTS = new Transaction();
+
+    private final File tableFile;
+    private final File keyFile;
+
+    private MappedByteBuffer table;
+    private int capacity;
+    private int size;
+
+    private final ArrayList<PublicKey> keys;
+    private final IdentityHashMap<AddressTable.Address, Integer> keyIds;
+    private FileChannel keyChannel;
+
+    /** Number of changes made to the store, for the pools layered on top of it */
+    private long generation;
+
+    private final byte[] record = new byte[RECORD_SIZE];
+
+    /** Opens the store kept in {@code directory}, creating an empty one if there is none */
+    public MappedUTXOStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create " + directory);
+        tableFile = new File(directory, "utxo.dat");
+        keyFile = new File(directory, "keys.dat");
+
+        keys = new ArrayList<PublicKey>();
+        keyIds = new IdentityHashMap<AddressTable.Address, Integer>();
+        readKeys();
+        keyChannel = new FileOutputStream(keyFile, true).getChannel();
+
+        if (tableFile.exists()) {
+            table = map(tableFile, -1);
+            if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION)
+                throw new IOException("not a UTXO store: " + tableFile);
+            capacity = table.getInt(CAPACITY_OFFSET);
+            size = table.getInt(SIZE_OFFSET);
+        } else {
+            capacity = MIN_CAPACITY;
+            table = create(tableFile, capacity);
+        }
+    }
+
+    /** Adds a mapping from UTXO {@code utxo} to transaction output {@code txOut} to the store */
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_LENGTH)
+            throw new IllegalArgumentException("transaction hashes must be " + HASH_LENGTH + " bytes long");
+        int keyId = intern(txOut.getInternedAddress());
+        generation++;
+
+        int i = find(txHash, utxo.getIndex());
+        if (i < 0) {
+            if (size + 1 > capacity / 4 * 3) {
+                grow();
+                i = find(txHash, utxo.getIndex());
+            }
+            i = -i - 1;
+            size++;
+            table.putInt(SIZE_OFFSET, size);
+        }
+        int pos = position(i);
+        table.put(pos + USED_OFFSET, (byte) 1);
+        for (int b = 0; b < HASH_LENGTH; b++)
+            table.put(pos + HASH_OFFSET + b, txHash[b]);
+        table.putInt(pos + INDEX_OFFSET, utxo.getIndex());
+        table.putLong(pos + VALUE_OFFSET, txOut.getValue());
+        table.putInt(pos + KEY_OFFSET, keyId);
+    }
+
+    /** Removes the UTXO {@code utxo} from the store */
+    public void removeUTXO(UTXO utxo) {
+        int i = find(utxo);
+        if (i < 0)
+            return;
+        generation++;
+
+        // shift back the following records of the run that would no longer be reachable
+        int hole = i;
+        for (int j = (i + 1) & (capacity - 1); isUsed(j); j = (j + 1) & (capacity - 1)) {
+            int home = slot(hashCode(j));
+            if (((j - home) & (capacity - 1)) >= ((j - hole) & (capacity - 1))) {
+                copyRecord(j, hole);
+                hole = j;
+            }
+        }
+        table.put(position(hole) + USED_OFFSET, (byte) 0);
+        size--;
+        table.putInt(SIZE_OFFSET, size);
+    }
+
+    /** @return the transaction output corresponding to UTXO {@code utxo}, or null */
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        return getTxOutput(find(utxo));
+    }
+
+    /**
+     * @return the transaction output with index {@code index} of the transaction whose hash is
+     *         {@code txHash}, or null if it is not in the store
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return getTxOutput(find(txHash, index));
+    }
+
+    public boolean contains(UTXO utxo) {
+        return find(utxo) >= 0;
+    }
+
+    public boolean contains(byte[] txHash, int index) {
+        return find(txHash, index) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns an {@code ArrayList} of all UTXOs in the store */
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size);
+        byte[] txHash = new byte[HASH_LENGTH];
+        for (int i = 0; i < capacity; i++) {
+            if (!isUsed(i))
+                continue;
+            int pos = position(i);
+            for (int b = 0; b < HASH_LENGTH; b++)
+                txHash[b] = table.get(pos + HASH_OFFSET + b);
+            allUTXO.add(new UTXO(txHash, table.getInt(pos + INDEX_OFFSET)));
+        }
+        return allUTXO;
+    }
+
+    /** @return the number of changes made to the store since it was opened */
+    long getGeneration() {
+        return generation;
+    }
+
+    /** Writes the changes made to the store so far to disk */
+    public void force() throws IOException {
+        table.force();
+    }
+
+    public void close() throws IOException {
+        force();
+        keyChannel.close();
+    }
+
+    /**
+     * @return the slot of the UTXO if it is in the table, or {@code -(slot + 1)} with the empty
+     *         slot where it would be added otherwise
+     */
+    private int find(byte[] txHash, int index) {
+        if (txHash.length != HASH_LENGTH)
+            return -1;
+        int i = slot(UTXO.hashCode(txHash, index));
+        for (; isUsed(i); i = (i + 1) & (capacity - 1)) {
+            if (matches(i, txHash, index))
+                return i;
+        }
+        return -i - 1;
+    }
+
+    /** Same as {@link #find(byte[], int)}, comparing the hash of {@code utxo} in place */
+    private int find(UTXO utxo) {
+        int i = slot(utxo.hashCode());
+        for (; isUsed(i); i = (i + 1) & (capacity - 1)) {
+            int pos = position(i);
+            if (table.getInt(pos + INDEX_OFFSET) == utxo.getIndex() && utxo.hashEquals(table, pos + HASH_OFFSET))
+                return i;
+        }
+        return -i - 1;
+    }
+
+    /** @return the output in slot {@code i}, or null if {@code i} is negative */
+    private Transaction.Output getTxOutput(int i) {
+        if (i < 0)
+            return null;
+        int pos = position(i);
+        return OUTPUTS.new Output(table.getLong(pos + VALUE_OFFSET), keys.get(table.getInt(pos + KEY_OFFSET)));
+    }
+
+    private boolean matches(int i, byte[] txHash, int index) {
+        int pos = position(i);
+        if (table.getInt(pos + INDEX_OFFSET) != index)
+            return false;
+        for (int b = 0; b < HASH_LENGTH; b++) {
+            if (table.get(pos + HASH_OFFSET + b) != txHash[b])
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the hash code of the UTXO in slot {@code i}, read in place */
+    private int hashCode(int i) {
+        int pos = position(i) + HASH_OFFSET;
+        return UTXO.hashCode(table.getLong(pos), table.getLong(pos + 8), table.getLong(pos + 16),
+                table.getLong(pos + 24), table.getInt(position(i) + INDEX_OFFSET));
+    }
+
+    private boolean isUsed(int i) {
+        return table.get(position(i) + USED_OFFSET) != 0;
+    }
+
+    private void copyRecord(int from, int to) {
+        int fromPos = position(from);
+        int toPos = position(to);
+        for (int b = 0; b < RECORD_SIZE; b++)
+            record[b] = table.get(fromPos + b);
+        for (int b = 0; b < RECORD_SIZE; b++)
+            table.put(toPos + b, record[b]);
+    }
+
+    private int slot(int hashCode) {
+        int h = hashCode * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    private static int position(int i) {
+        return HEADER_SIZE + i * RECORD_SIZE;
+    }
+
+    /** Moves the records to a table twice as large, replacing the file once it is complete */
+    private void grow() {
+        if (capacity >= MAX_CAPACITY)
+            throw new IllegalStateException("UTXO store is full: " + size + " UTXOs");
+        try {
+            File tmp = new File(tableFile.getPath() + ".tmp");
+            int newCapacity = capacity << 1;
+            MappedByteBuffer newTable = create(tmp, newCapacity);
+            int mask = newCapacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                if (!isUsed(i))
+                    continue;
+                int h = hashCode(i) * 0x9E3779B9;
+                int j = (h ^ (h >>> 16)) & mask;
+                while (newTable.get(position(j) + USED_OFFSET) != 0)
+                    j = (j + 1) & mask;
+                int fromPos = position(i);
+                int toPos = position(j);
+                for (int b = 0; b < RECORD_SIZE; b++)
+                    newTable.put(toPos + b, table.get(fromPos + b));
+            }
+            newTable.putInt(SIZE_OFFSET, size);
+            newTable.force();
+            Files.move(tmp.toPath(), tableFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            table = newTable;
+            capacity = newCapacity;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MappedByteBuffer create(File file, int capacity) throws IOException {
+        MappedByteBuffer table = map(file, position(capacity));
+        table.putInt(0, MAGIC);
+        table.putInt(4, VERSION);
+        table.putInt(CAPACITY_OFFSET, capacity);
+        table.putInt(SIZE_OFFSET, 0);
+        return table;
+    }
+
+    /** Maps {@code file}, after setting its length to {@code length} unless it is negative */
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (length >= 0)
+                raf.setLength(length);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the id of {@code address}, adding it to the key file if it is new. The key is on
+     *         disk by the time its id is returned.
+     */
+    private int intern(AddressTable.Address address) {
+        Integer id = keyIds.get(address);
+        if (id != null)
+            return id;
+        byte[] encoded = address.getEncoded();
+        id = keys.size();
+        ByteBuffer b = ByteBuffer.allocate(4 + encoded.length);
+        b.putInt(encoded.length);
+        b.put(encoded);
+        b.flip();
+        try {
+            while (b.hasRemaining())
+                keyChannel.write(b);
+            keyChannel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        keys.add(address.getKey());
+        keyIds.put(address, id);
+        return id;
+    }
+
+    /** Reads the keys of the key file, truncating it after the last complete key */
+    private void readKeys() throws IOException {
+        if (!keyFile.exists())
+            return;
+        long fileLength = keyFile.length();
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(keyFile)));
+        try {
+            while (fileLength - valid >= 4) {
+                int length = in.readInt();
+                if (length < 0 || length > fileLength - valid - 4)
+                    break;
+                byte[] encoded = new byte[length];
+                in.readFully(encoded);
+                AddressTable.Address address = AddressTable.getDefault().decode(encoded);
+                keyIds.put(address, keys.size());
+                keys.add(address.getKey());
+                valid += 4 + length;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("cannot read " + keyFile, e);
+        } finally {
+            in.close();
+        }
+        if (valid < fileLength) {
+            RandomAccessFile raf = new RandomAccessFile(keyFile, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters, latency histograms and gauges measuring the processing of blocks and
+ * transactions, read by a {@link MetricsExporter}.
+ * <p>
+ * Metrics are disabled unless the {@code metrics.enabled} system property is true when this class
+ * is loaded. The code measured checks {@link #ENABLED} before recording anything, and since it is a
+ * constant, the checks cost nothing once compiled when metrics are disabled.
+ * <p>
+ * The block chain and the transaction handlers record to the {@link #getDefault() default}
+ * metrics, under these names:
+ * <ul>
+ * <li>{@code block.*.nanos}: the time {@link BlockChain#addBlock} takes, in all and for each
+ * stage: {@code utxoPool} to get the UTXO pool at the parent, {@code verify} to check the
+ * signatures, {@code validate} to check the transactions against the pool, {@code update} to
+ * build the pool at the block, {@code link} to link the block, {@code prune} to prune the blocks
+ * that became too old, {@code store} to write them to the block store, {@code transactionPool}
+ * to update the transaction pool,</li>
+ * <li>{@code block.added}, {@code block.rejected}, {@code block.orphaned}, {@code block.fork}
+ * (added on another branch than the max height block) and {@code block.reorg} (making the max
+ * height block switch branches),</li>
+ * <li>{@code tx.valid} and {@code tx.invalid.*}, the transactions found valid by
+ * {@link TxHandler#isValidTx} and those found invalid, by the first of its five rules they
+ * break,</li>
+ * <li>{@code transactionPool.accepted} and {@code transactionPool.rejected},</li>
+ * <li>{@code checkpoint.failed}, the periodic checkpoints that could not be written,</li>
+ * <li>{@code utxo.merge} and {@code utxo.merge.bytes}, the times two layers of a UTXO pool were
+ * merged and the bytes of the tables copied to do so,</li>
+ * <li>the gauges of the last block chain created: {@code chain.height}, {@code utxo.size},
+ * {@code transactionPool.size}, {@code orphan.size}, which read 0 once the block chain is
+ * collected, and those of the default signature cache.</li>
+ * </ul>
+ */
+public class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("metrics.enabled");
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    /** Percentiles of a histogram reported by {@link #snapshot()} */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    /** @return the metrics recorded to by the block chain and the transaction handlers */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /** @return the current time to measure a duration from, or 0 if metrics are disabled */
+    public static long now() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /** @return the counter named {@code name}, created if needed */
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new LongAdder());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    /** @return the histogram named {@code name}, created if needed */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new LatencyHistogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /** Reads the gauge named {@code name} from {@code gauge}, instead of the previous one if any */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return the current values of the metrics, by name: a counter or a gauge under its own name,
+     *         and a histogram under its name followed by {@code .count}, {@code .mean},
+     *         {@code .max} and {@code .p50}, {@code .p90}, {@code .p99} and {@code .p99.9}
+     */
+    public SortedMap<String, Number> snapshot() {
+        TreeMap<String, Number> snapshot = new TreeMap<String, Number>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+            snapshot.put(counter.getKey(), counter.getValue().sum());
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet())
+            snapshot.put(gauge.getKey(), gauge.getValue().get());
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            snapshot.put(name + ".count", histogram.getCount());
+            snapshot.put(name + ".mean", histogram.getMean());
+            snapshot.put(name + ".max", histogram.getMax());
+            for (double percentile : PERCENTILES) {
+                String suffix = percentile == (long) percentile ? Long.toString((long) percentile) : Double.toString(percentile);
+                snapshot.put(name + ".p" + suffix, histogram.getValueAtPercentile(percentile));
+            }
+        }
+        return snapshot;
+    }
+
+    /** Resets the counters and the histograms */
+    public void reset() {
+        for (LongAdder counter : counters.values())
+            counter.reset();
+        for (LatencyHistogram histogram : histograms.values())
+            histogram.reset();
+    }
+
+    /** A value read when the metrics are exported, such as the size of a pool */
+    public interface Gauge {
+        long get();
+    }
+}
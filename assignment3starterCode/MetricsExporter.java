@@ -0,0 +1,8 @@
+/**
+ * Makes {@link Metrics} readable from outside of the process, such as through JMX or a text dump
+ */
+public interface MetricsExporter {
+
+    /** Exports {@code metrics}, either their current values or, for a live view, the metrics themselves */
+    void export(Metrics metrics) throws Exception;
+}
@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Blocks received before their parent, kept until the parent is added to the block chain. The
+ * pool holds at most {@code capacity} blocks, evicting the oldest first, and drops the blocks
+ * that have been waiting longer than {@code maxAgeMillis}.
+ */
+public class OrphanPool {
+
+    private final int capacity;
+    private final long maxAgeMillis;
+
+    /** Orphans by hash, oldest first */
+    private final LinkedHashMap<ByteArrayWrapper, Orphan> orphans;
+    /** Orphans by the hash of their missing parent */
+    private final HashMap<ByteArrayWrapper, List<Orphan>> waiting;
+
+    private long hits;
+    private long evictions;
+
+    public OrphanPool(int capacity, long maxAgeMillis) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        this.capacity = capacity;
+        this.maxAgeMillis = maxAgeMillis;
+        orphans = new LinkedHashMap<ByteArrayWrapper, Orphan>();
+        waiting = new HashMap<ByteArrayWrapper, List<Orphan>>();
+    }
+
+    /** Adds {@code block}, whose parent is not known yet, to the pool */
+    public synchronized void addOrphan(Block block) {
+        long now = System.currentTimeMillis();
+        evictExpired(now);
+        ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+        if (capacity == 0 || orphans.containsKey(hash))
+            return;
+        if (orphans.size() == capacity) {
+            remove(orphans.values().iterator().next());
+            evictions++;
+        }
+
+        Orphan orphan = new Orphan(hash, new ByteArrayWrapper(block.getPrevBlockHash()), block, now);
+        orphans.put(hash, orphan);
+        List<Orphan> siblings = waiting.get(orphan.parentHash);
+        if (siblings == null) {
+            siblings = new ArrayList<Orphan>(1);
+            waiting.put(orphan.parentHash, siblings);
+        }
+        siblings.add(orphan);
+    }
+
+    /**
+     * Removes from the pool the orphans whose parent is the block with hash {@code parentHash},
+     * after dropping those that are too old
+     *
+     * @return the removed orphans, in the order they were received
+     */
+    public synchronized List<Block> removeChildren(byte[] parentHash) {
+        evictExpired(System.currentTimeMillis());
+        List<Block> children = new ArrayList<Block>();
+        List<Orphan> siblings = waiting.remove(new ByteArrayWrapper(parentHash));
+        if (siblings == null)
+            return children;
+        for (Orphan orphan : siblings) {
+            orphans.remove(orphan.hash);
+            children.add(orphan.block);
+        }
+        hits += children.size();
+        return children;
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        return orphans.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    public synchronized int size() {
+        return orphans.size();
+    }
+
+    /** @return the number of orphans handed back when their parent was added */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of orphans dropped because the pool was full or they were too old */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Orphan> it = orphans.values().iterator();
+        while (it.hasNext()) {
+            Orphan orphan = it.next();
+            if (now - orphan.receivedAt <= maxAgeMillis)
+                break;
+            it.remove();
+            removeWaiting(orphan);
+            evictions++;
+        }
+    }
+
+    private void remove(Orphan orphan) {
+        orphans.remove(orphan.hash);
+        removeWaiting(orphan);
+    }
+
+    private void removeWaiting(Orphan orphan) {
+        List<Orphan> siblings = waiting.get(orphan.parentHash);
+        siblings.remove(orphan);
+        if (siblings.isEmpty())
+            waiting.remove(orphan.parentHash);
+    }
+
+    private static class Orphan {
+        final ByteArrayWrapper hash;
+        final ByteArrayWrapper parentHash;
+        final Block block;
+        final long receivedAt;
+
+        Orphan(ByteArrayWrapper hash, ByteArrayWrapper parentHash, Block block, long receivedAt) {
+            this.hash = hash;
+            this.parentHash = parentHash;
+            this.block = block;
+            this.receivedAt = receivedAt;
+        }
+    }
+}
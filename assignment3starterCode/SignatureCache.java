@@ -0,0 +1,137 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the input signatures found valid, so that a transaction checked when it is added to
+ * the transaction pool or to a new block is not checked again when the block is added to the block
+ * chain. Signatures are looked up by the hash of their transaction and the index of their input,
+ * in the same form as UTXOs, along with the signature itself and the key it was checked against,
+ * so that a signature found in the cache is neither hashed nor the message it signs rebuilt.
+ * <p>
+ * The hash of a transaction commits to the signed message, so only the transactions whose hash
+ * was computed from their current contents use the cache: a transaction whose hash was set, which
+ * may be the hash of another one, has its signatures checked every time.
+ * <p>
+ * The cache holds at most {@code capacity} signatures, split among stripes that each evict their
+ * least recently used signature first. A cache is thread-safe.
+ */
+public class SignatureCache {
+
+    /** Maximum number of stripes, each locked on its own */
+    private static final int STRIPES = 16;
+
+    /** Number of signatures held by the default cache */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final SignatureCache DEFAULT = new SignatureCache(DEFAULT_CAPACITY);
+
+    private final Stripe[] stripes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SignatureCache(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        stripes = new Stripe[Math.max(1, Math.min(STRIPES, capacity))];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe((capacity + stripes.length - 1 - i) / stripes.length);
+    }
+
+    /** @return the cache shared by the transaction handlers and signature verifiers by default */
+    public static SignatureCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return true if the signature of input {@code index} of {@code tx} is a valid signature of
+     *         the input under {@code publicKey}, as {@link Crypto#verifySignature} tells unless
+     *         the signature is in the cache. Other signatures are checked with a verifier kept
+     *         by the interned address of {@code publicKey}.
+     */
+    public boolean verify(Transaction tx, int index, PublicKey publicKey) {
+        byte[] signature = tx.getInput(index).getSignature();
+        if (!tx.isHashCurrent() || signature == null || publicKey == null)
+            return Crypto.verifySignature(publicKey, tx.getRawDataToSign(index), signature);
+        AddressTable.Address address = AddressTable.getDefault().intern(publicKey);
+
+        UTXO key = new UTXO(tx.getHash(), index);
+        Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+        Verified entry;
+        synchronized (stripe) {
+            entry = stripe.get(key);
+        }
+        if (entry != null && entry.address == address && Arrays.equals(entry.signature, signature)) {
+            hits.increment();
+            return true;
+        }
+
+        misses.increment();
+        if (!address.verify(tx.getRawDataToSign(index), signature))
+            return false;
+        synchronized (stripe) {
+            stripe.put(key, new Verified(address, signature));
+        }
+        return true;
+    }
+
+    /** @return the number of signatures found in the cache */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of signatures that had to be verified */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the number of signatures dropped to make room for others */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private static class Verified {
+        final AddressTable.Address address;
+        /** the signature, which the input it was copied from never modifies */
+        final byte[] signature;
+
+        Verified(AddressTable.Address address, byte[] signature) {
+            this.address = address;
+            this.signature = signature;
+        }
+    }
+
+    /** Signatures of one stripe, least recently used first */
+    private class Stripe extends LinkedHashMap<UTXO, Verified> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UTXO, Verified> eldest) {
+            if (size() <= capacity)
+                return false;
+            evictions.increment();
+            return true;
+        }
+    }
+}
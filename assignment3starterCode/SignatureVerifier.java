@@ -0,0 +1,167 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the input signatures of a batch of transactions, such as all the transactions of a
+ * block, on a fork/join pool before they are checked one by one against the UTXO pool. Signatures
+ * found in the {@link SignatureCache#getDefault() default cache} are not verified again.
+ */
+public class SignatureVerifier {
+
+    /** Number of signatures below which a batch is not split any further */
+    private static final int BATCH_SIZE = 4;
+
+    private final ForkJoinPool pool;
+    private final SignatureCache cache;
+    /** Number of verifications running on {@code pool}, plus one until the verifier is shut down */
+    private final AtomicInteger users = new AtomicInteger(1);
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+
+    /** Creates a verifier running on the common fork/join pool */
+    public SignatureVerifier() {
+        pool = ForkJoinPool.commonPool();
+        cache = SignatureCache.getDefault();
+    }
+
+    /** Creates a verifier that checks up to {@code parallelism} signatures at the same time */
+    public SignatureVerifier(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        pool = new ForkJoinPool(parallelism);
+        cache = SignatureCache.getDefault();
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Stops the worker threads of this verifier once the verifications running on them are done,
+     * unless it runs on the common pool. A verifier shut down still verifies signatures, on the
+     * calling thread.
+     */
+    public void shutdown() {
+        if (shutdown.compareAndSet(false, true))
+            release();
+    }
+
+    /**
+     * Checks the signature of every input of {@code txs} that claims an output either in
+     * {@code utxoPool} or of another transaction of {@code txs}. Inputs claiming any other output
+     * are skipped, as they are rejected anyway when the transactions are applied to the pool.
+     *
+     * @return false as soon as an invalid signature is found, true otherwise
+     */
+    public boolean verifyAll(Transaction[] txs, UTXOPool utxoPool) {
+        HashMap<ByteArrayWrapper, Transaction> batch = new HashMap<ByteArrayWrapper, Transaction>();
+        for (Transaction tx : txs)
+            batch.put(new ByteArrayWrapper(tx.getHash()), tx);
+        return verifyAll(txs, utxoPool, batch);
+    }
+
+    /**
+     * Same as {@link #verifyAll(Transaction[], UTXOPool)}, the outputs claimed by the inputs being
+     * looked up among the transactions of {@code batch} rather than those of {@code txs}
+     */
+    boolean verifyAll(Transaction[] txs, UTXOPool utxoPool, Map<ByteArrayWrapper, Transaction> batch) {
+        List<Check> checks = new ArrayList<Check>();
+        for (Transaction tx : txs) {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                Transaction.Output txOutput = utxoPool.getTxOutput(input.getPrevTxHash(), input.getOutputIndex());
+                if (txOutput == null) {
+                    Transaction prevTx = batch.get(new ByteArrayWrapper(input.getPrevTxHash()));
+                    if (prevTx != null)
+                        txOutput = prevTx.getOutput(input.getOutputIndex());
+                }
+                if (txOutput != null)
+                    checks.add(new Check(tx, i, txOutput.getAddress(), cache));
+            }
+        }
+
+        AtomicBoolean failed = new AtomicBoolean();
+        Check[] all = checks.toArray(new Check[0]);
+        if (all.length <= BATCH_SIZE || !acquire()) {
+            new VerifyAction(all, 0, all.length, failed).compute();
+        } else {
+            try {
+                pool.invoke(new VerifyAction(all, 0, all.length, failed));
+            } finally {
+                release();
+            }
+        }
+        return !failed.get();
+    }
+
+    /** @return true if {@code pool} may be used until {@link #release()}, false if it is shut down */
+    private boolean acquire() {
+        while (true) {
+            int n = users.get();
+            if (n == 0)
+                return false;
+            if (users.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    private void release() {
+        if (users.decrementAndGet() == 0 && pool != ForkJoinPool.commonPool())
+            pool.shutdown();
+    }
+
+    /** The signature of input {@code index} of {@code tx}, to be checked against {@code publicKey} */
+    private static class Check {
+        final Transaction tx;
+        final int index;
+        final PublicKey publicKey;
+        final SignatureCache cache;
+
+        Check(Transaction tx, int index, PublicKey publicKey, SignatureCache cache) {
+            this.tx = tx;
+            this.index = index;
+            this.publicKey = publicKey;
+            this.cache = cache;
+        }
+
+        boolean verify() {
+            return cache.verify(tx, index, publicKey);
+        }
+    }
+
+    private static class VerifyAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Check[] checks;
+        private final int from;
+        private final int to;
+        private final AtomicBoolean failed;
+
+        VerifyAction(Check[] checks, int from, int to, AtomicBoolean failed) {
+            this.checks = checks;
+            this.from = from;
+            this.to = to;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new VerifyAction(checks, from, middle, failed),
+                        new VerifyAction(checks, middle, to, failed));
+                return;
+            }
+            for (int i = from; i < to && !failed.get(); i++) {
+                if (!checks[i].verify())
+                    failed.set(true);
+            }
+        }
+    }
+}
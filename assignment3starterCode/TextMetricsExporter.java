@@ -0,0 +1,33 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes the current values of the metrics to a writer, one {@code name value} line per value in
+ * the order of the names
+ */
+public class TextMetricsExporter implements MetricsExporter {
+
+    private final Writer writer;
+
+    public TextMetricsExporter(Writer writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public void export(Metrics metrics) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> metric : metrics.snapshot().entrySet()) {
+            Number value = metric.getValue();
+            text.append(metric.getKey()).append(' ');
+            if (value instanceof Double)
+                text.append(String.format(Locale.ROOT, "%.1f", value.doubleValue()));
+            else
+                text.append(value.longValue());
+            text.append('\n');
+        }
+        writer.write(text.toString());
+        writer.flush();
+    }
+}
@@ -1,21 +1,24 @@
 
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class Transaction {
 
+    /** Number of base units in a bitcoin, the unit of the values of the outputs */
+    public static final long COIN = 100000000L;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
-        public byte[] prevTxHash;
+        private final byte[] prevTxHash;
         /** used output's index in the previous transaction */
-        public int outputIndex;
+        private final int outputIndex;
         /** the signature produced to check validity */
-        public byte[] signature;
+        private byte[] signature;
 
         public Input(byte[] prevHash, int index) {
             if (prevHash == null)
@@ -25,11 +28,33 @@ public class Transaction {
             outputIndex = index;
         }
 
+        /** Copies {@code in}, signature included */
+        private Input(Input in) {
+            this(in.prevTxHash, in.outputIndex);
+            if (in.signature != null)
+                signature = Arrays.copyOf(in.signature, in.signature.length);
+        }
+
+        /** @return the hash of the transaction whose output is used, which must not be modified */
+        public byte[] getPrevTxHash() {
+            return prevTxHash;
+        }
+
+        public int getOutputIndex() {
+            return outputIndex;
+        }
+
+        /** @return the signature of the input, which must not be modified */
+        public byte[] getSignature() {
+            return signature;
+        }
+
         public void addSignature(byte[] sig) {
             if (sig == null)
                 signature = null;
             else
                 signature = Arrays.copyOf(sig, sig.length);
+            modified();
         }
 
         public boolean equals(Object other) {
@@ -66,19 +91,63 @@ public class Transaction {
             hash = hash * 31 + Arrays.hashCode(signature);
             return hash;
         }
+
+        /** size of the input in the data to sign, i.e. without its signature */
+        int getRawSizeToSign() {
+            return (prevTxHash == null ? 0 : prevTxHash.length) + Integer.SIZE / 8;
+        }
+
+        int getRawSize() {
+            return getRawSizeToSign() + (signature == null ? 0 : signature.length);
+        }
+
+        void writeRawToSign(ByteBuffer b) {
+            if (prevTxHash != null)
+                b.put(prevTxHash);
+            b.putInt(outputIndex);
+        }
+
+        void writeRaw(ByteBuffer b) {
+            writeRawToSign(b);
+            if (signature != null)
+                b.put(signature);
+        }
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units, {@link #COIN} of which make a bitcoin */
+        private final long value;
         /** the address or public key of the recipient */
-        public PublicKey address;
+        private final PublicKey address;
+
+        /** {@code address} interned, or null if the output has no address */
+        private final AddressTable.Address interned;
 
-        public Output(double v, PublicKey addr) {
+        /**
+         * The output pays to the key interned for {@code addr}, which all the outputs paying to
+         * the same address share
+         */
+        public Output(long v, PublicKey addr) {
             value = v;
+            if (addr != null) {
+                interned = AddressTable.getDefault().intern(addr);
+                addr = interned.getKey();
+            } else {
+                interned = null;
+            }
             address = addr;
         }
 
+        /** @return the value of the output in base units */
+        public long getValue() {
+            return value;
+        }
+
+        /** @return the public key of the recipient */
+        public PublicKey getAddress() {
+            return address;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -91,52 +160,106 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
+            // equal keys are interned to the same address
+            if (interned != op.interned)
                 return false;
             return true;
         }
 
         public int hashCode() {
             int hash = 1;
-            hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            hash = hash * 17 + Long.hashCode(value);
+            hash = hash * 961 + (interned == null ? 0 : interned.hashCode());
             return hash;
         }
+
+        /** @return {@code address} interned, or null if the output has no address */
+        AddressTable.Address getInternedAddress() {
+            return interned;
+        }
+
+        /** @return the public exponent followed by the modulus of {@code address} */
+        byte[] getEncodedAddress() {
+            return interned.getRawBytes();
+        }
+
+        int getRawSize() {
+            return Long.SIZE / 8 + getEncodedAddress().length;
+        }
+
+        void writeRaw(ByteBuffer b) {
+            b.putLong(value);
+            b.put(getEncodedAddress());
+        }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
-    private ArrayList<Input> inputs;
-    private ArrayList<Output> outputs;
+    /** value of {@code modCount} when {@code hash} was computed, -1 if it was set */
+    private int hashModCount = -1;
+    /**
+     * number of modifications made to this transaction through its methods and
+     * {@link Input#addSignature}, the only ways to change its inputs and outputs
+     */
+    private int modCount;
+    /** raw transaction, or null if the transaction was modified since it was last built */
+    private volatile byte[] rawTx;
+    private final ArrayList<Input> inputs;
+    private final ArrayList<Output> outputs;
+    /** unmodifiable views of {@code inputs} and {@code outputs} */
+    private final List<Input> inputsView;
+    private final List<Output> outputsView;
     private boolean coinbase;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
+        inputsView = Collections.unmodifiableList(inputs);
+        outputsView = Collections.unmodifiableList(outputs);
         coinbase = false;
     }
 
+    /** Copies {@code tx}, whose inputs are copied and whose outputs, which cannot change, are shared */
     public Transaction(Transaction tx) {
         hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs)
+            inputs.add(new Input(in));
         outputs = new ArrayList<Output>(tx.outputs);
+        inputsView = Collections.unmodifiableList(inputs);
+        outputsView = Collections.unmodifiableList(outputs);
         coinbase = false;
     }
 
-    /** create a coinbase transaction of value {@code coin} and calls finalize on it */
-    public Transaction(double coin, PublicKey address) {
+    /**
+     * create a coinbase transaction of value {@code coin}, in base units, and calls finalize on it
+     */
+    public Transaction(long coin, PublicKey address) {
         coinbase = true;
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
+        inputsView = Collections.unmodifiableList(inputs);
+        outputsView = Collections.unmodifiableList(outputs);
         addOutput(coin, address);
         finalize();
     }
 
+    /**
+     * @return {@code bitcoins} in base units, rounded to the nearest one
+     * @throws IllegalArgumentException if {@code bitcoins} is not a number or too large
+     */
+    public static long toBaseUnits(double bitcoins) {
+        double units = Math.rint(bitcoins * COIN);
+        if (Double.isNaN(units) || Math.abs(units) >= 0x1p63)
+            throw new IllegalArgumentException("not a valid amount: " + bitcoins);
+        return (long) units;
+    }
+
+    /** @return {@code units} base units in bitcoins */
+    public static double toBitcoins(long units) {
+        return (double) units / COIN;
+    }
+
     public boolean isCoinbase() {
         return coinbase;
     }
@@ -144,128 +267,150 @@ public class Transaction {
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        modified();
     }
 
-    public void addOutput(double value, PublicKey address) {
+    /**
+     * adds an output of {@code value} base units; an amount in bitcoins is converted with
+     * {@link #toBaseUnits}
+     */
+    public void addOutput(long value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        modified();
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        modified();
     }
 
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            if (ut.matches(in.prevTxHash, in.outputIndex)) {
                 inputs.remove(i);
+                modified();
                 return;
             }
         }
     }
 
+    /**
+     * @return the data signed by input {@code index}: its previous transaction hash, if any, and
+     *         its big-endian output index, followed by the outputs as in {@link #getRawTx()}
+     */
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        int size = in.getRawSizeToSign();
+        for (Output op : outputs)
+            size += op.getRawSize();
+        ByteBuffer sigData = ByteBuffer.allocate(size);
+        in.writeRawToSign(sigData);
+        for (Output op : outputs)
+            op.writeRaw(sigData);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
+    /** @return the size in bytes of {@link #getRawTx()} */
+    public int getRawTxSize() {
+        byte[] raw = rawTx;
+        if (raw != null)
+            return raw.length;
+        int size = 0;
+        for (Input in : inputs)
+            size += in.getRawSize();
+        for (Output op : outputs)
+            size += op.getRawSize();
+        return size;
+    }
+
+    /**
+     * Writes the raw transaction at the position of {@code b}, which must have at least
+     * {@link #getRawTxSize()} bytes remaining
+     */
+    public void writeRawTx(ByteBuffer b) {
+        b.put(getRawTx());
+    }
+
+    /**
+     * @return the raw transaction: for each input, its previous transaction hash, if any, its
+     *         big-endian output index and its signature, if any, then for each output its
+     *         big-endian value and the two's-complement public exponent and modulus of its address.
+     *         The array is kept until the transaction is modified and must not be changed by the
+     *         caller.
+     */
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        byte[] raw = rawTx;
+        if (raw == null) {
+            ByteBuffer b = ByteBuffer.allocate(getRawTxSize());
+            for (Input in : inputs)
+                in.writeRaw(b);
+            for (Output op : outputs)
+                op.writeRaw(b);
+            raw = b.array();
+            rawTx = raw;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return raw;
     }
 
+    /** Feeds the raw transaction to {@code md} */
+    public void updateDigest(MessageDigest md) {
+        md.update(getRawTx());
+    }
+
+    /** Computes the hash of the transaction, unless it has not been modified since the last call */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        if (hash != null && hashModCount == modCount)
+            return;
+        MessageDigest md = Crypto.sha256();
+        updateDigest(md);
+        hash = md.digest();
+        hashModCount = modCount;
+    }
+
+    /** @return the number of modifications made through the methods of this transaction */
+    int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * @return true if the hash of the transaction was computed by {@link #finalize()} from its
+     *         current contents, rather than set or computed before a modification
+     */
+    boolean isHashCurrent() {
+        return hash != null && hashModCount == modCount;
+    }
+
+    private void modified() {
+        modCount++;
+        rawTx = null;
     }
 
     public void setHash(byte[] h) {
         hash = h;
+        hashModCount = -1;
     }
 
     public byte[] getHash() {
         return hash;
     }
 
-    public ArrayList<Input> getInputs() {
-        return inputs;
+    /** @return the inputs of the transaction, which are changed through its methods only */
+    public List<Input> getInputs() {
+        return inputsView;
     }
 
-    public ArrayList<Output> getOutputs() {
-        return outputs;
+    /** @return the outputs of the transaction, which are changed through its methods only */
+    public List<Output> getOutputs() {
+        return outputsView;
     }
 
     public Input getInput(int index) {
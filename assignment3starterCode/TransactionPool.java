@@ -1,38 +1,550 @@
 
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A pool of transactions that may be looked up concurrently with their addition and removal. A
+ * pool created with a capacity evicts transactions according to its {@link EvictionPolicy} once
+ * it holds more.
+ * <p>
+ * The pool keeps its transactions ordered by the fee rate of their ancestor package, i.e. of the
+ * transaction together with the transactions of the pool whose outputs it claims directly or
+ * indirectly, so that a transaction paying a high fee lets its ancestors be mined with it. The
+ * fee and size of each package are kept up to date as transactions come and go, and a package is
+ * limited to {@link #MAX_ANCESTORS} transactions, while a transaction may have at most
+ * {@link #MAX_DESCENDANTS} descendants in the pool, itself included, so that adding or removing a
+ * transaction only visits a bounded number of others.
+ * <p>
+ * Lookups and {@link #getBestTransactions} do not lock. Threads adding or removing transactions
+ * take turns: a write may change the packages of up to {@link #MAX_ANCESTORS} ancestors and
+ * {@link #MAX_DESCENDANTS} descendants, which no lock on part of the pool would cover, and only
+ * holds the lock for a bounded number of steps.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    /** Maximum number of transactions of an ancestor package, the transaction itself included */
+    public static final int MAX_ANCESTORS = 25;
+    /** Maximum number of descendants of a transaction in the pool, the transaction itself included */
+    public static final int MAX_DESCENDANTS = 25;
 
+    /** Which transactions of a full pool are evicted first */
+    public enum EvictionPolicy {
+        OLDEST_FIRST,
+        LOWEST_FEE
+    }
+
+    private final ConcurrentHashMap<ByteArrayWrapper, Entry> H;
+
+    /** Maximum number of transactions of the pool, 0 if unbounded */
+    private final int capacity;
+    private final EvictionPolicy policy;
+
+    /** Transactions of a bounded pool in the order they are evicted, null if unbounded */
+    private final ConcurrentSkipListSet<Entry> evictionOrder;
+    private final AtomicLong sequence;
+
+    /** Transactions by decreasing ancestor package fee rate */
+    private final ConcurrentSkipListSet<Rank> feeIndex;
+
+    /**
+     * Held while transactions are added or removed, which changes the links between the entries
+     * and their packages. Not taken by lookups. A single lock rather than stripes, since the
+     * entries a write relinks may be anywhere in the pool.
+     */
+    private final Object writeLock = new Object();
+
+    /** The transactions of the pool by the hash of each transaction whose outputs they claim */
+    private final HashMap<ByteArrayWrapper, List<Entry>> spenders;
+
+    /** The transactions of the pool by the outputs they claim */
+    private final ConcurrentHashMap<UTXO, Entry> claimedOutputs;
+
+    /** Creates an unbounded pool */
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(0, EvictionPolicy.OLDEST_FIRST);
+    }
+
+    /**
+     * Creates a pool holding at most {@code capacity} transactions, or an unbounded one if
+     * {@code capacity} is 0
+     */
+    public TransactionPool(int capacity, EvictionPolicy policy) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        H = new ConcurrentHashMap<ByteArrayWrapper, Entry>();
+        this.capacity = capacity;
+        this.policy = policy;
+        evictionOrder = capacity == 0 ? null : new ConcurrentSkipListSet<Entry>(evictionComparator(policy));
+        sequence = new AtomicLong();
+        feeIndex = new ConcurrentSkipListSet<Rank>(FEE_RATE_COMPARATOR);
+        spenders = new HashMap<ByteArrayWrapper, List<Entry>>();
+        claimedOutputs = new ConcurrentHashMap<UTXO, Entry>();
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        this(txPool.capacity, txPool.policy);
+        synchronized (txPool.writeLock) {
+            // parents first, so that each transaction is linked below the ones already there
+            List<Entry> entries = new ArrayList<Entry>(txPool.H.values());
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry e1, Entry e2) {
+                    return Integer.compare(e1.ancestorCount, e2.ancestorCount);
+                }
+            });
+            synchronized (writeLock) {
+                for (Entry entry : entries)
+                    put(new Entry(entry.hash, entry.tx, entry.fee, entry.sequence));
+            }
+            sequence.set(txPool.sequence.get());
+        }
+    }
+
+    /** @see #addTransaction(Transaction, long) */
+    public boolean addTransaction(Transaction tx) {
+        return addTransaction(tx, 0);
     }
 
-    public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+    /**
+     * Adds {@code tx}, which pays {@code fee} base units, to the pool
+     *
+     * @return false if {@code tx} was not added because its package would exceed
+     *         {@link #MAX_ANCESTORS} or one of its ancestors {@link #MAX_DESCENDANTS}, or if it was
+     *         evicted right away to bring the pool back to its capacity
+     */
+    public boolean addTransaction(Transaction tx, long fee) {
+        Entry entry = new Entry(new ByteArrayWrapper(tx.getHash()), tx, fee, sequence.getAndIncrement());
+        synchronized (writeLock) {
+            if (!put(entry))
+                return false;
+            evict();
+        }
+        return H.get(entry.hash) == entry;
     }
 
     public void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        synchronized (writeLock) {
+            Entry entry = H.remove(hash);
+            if (entry != null)
+                unlink(entry);
+        }
+    }
+
+    /**
+     * Removes the transactions of the pool, other than {@code tx}, that claim an output
+     * {@code tx} claims, along with the transactions claiming their outputs
+     */
+    public void removeConflicts(Transaction tx) {
+        synchronized (writeLock) {
+            for (Transaction.Input in : tx.getInputs()) {
+                Entry entry = claimedOutputs.get(new UTXO(in.getPrevTxHash(), in.getOutputIndex()));
+                if (entry != null && entry.tx != tx && !Arrays.equals(entry.tx.getHash(), tx.getHash()))
+                    removeWithDescendants(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the transaction of the pool claiming the output with index {@code index} of the
+     * transaction whose hash is {@code txHash}, if any, along with the transactions claiming its
+     * outputs
+     */
+    public void removeSpender(byte[] txHash, int index) {
+        synchronized (writeLock) {
+            Entry entry = claimedOutputs.get(new UTXO(txHash, index));
+            if (entry != null)
+                removeWithDescendants(entry);
+        }
+    }
+
+    /**
+     * @return the transaction of the pool claiming the output with index {@code index} of the
+     *         transaction whose hash is {@code txHash}, or null if there is none
+     */
+    public Transaction getSpender(byte[] txHash, int index) {
+        Entry entry = claimedOutputs.get(new UTXO(txHash, index));
+        return entry == null ? null : entry.tx;
     }
 
     public Transaction getTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Entry entry = H.get(hash);
+        return entry == null ? null : entry.tx;
     }
 
     public ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        for (Entry entry : H.values())
+            T.add(entry.tx);
+        return T;
+    }
+
+    /**
+     * Returns up to {@code maxCount} transactions of the pool, taking the ancestor packages with
+     * the highest fee rate first. A transaction is always preceded by the transactions of the pool
+     * whose outputs it claims. Transactions added or removed meanwhile may or may not be seen.
+     */
+    public ArrayList<Transaction> getBestTransactions(int maxCount) {
+        LinkedHashSet<Entry> selected = new LinkedHashSet<Entry>();
+        for (Rank rank : feeIndex) {
+            if (selected.size() >= maxCount)
+                break;
+            Entry entry = rank.entry;
+            if (selected.contains(entry) || H.get(entry.hash) != entry)
+                continue;
+            LinkedHashSet<Entry> pkg = new LinkedHashSet<Entry>();
+            addPackage(entry, selected, pkg);
+            if (selected.size() + pkg.size() <= maxCount)
+                selected.addAll(pkg);
+        }
+        ArrayList<Transaction> T = new ArrayList<Transaction>(selected.size());
+        for (Entry entry : selected)
+            T.add(entry.tx);
         return T;
     }
+
+    /** @return the number of transactions in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * Adds {@code entry} in place of the transaction with the same hash, if any
+     *
+     * @return false, leaving the pool unchanged, if the package limits do not allow it
+     */
+    private boolean put(Entry entry) {
+        Entry previous = H.remove(entry.hash);
+        if (previous != null)
+            unlink(previous);
+        if (!link(entry, true)) {
+            // the transaction replaced was within the limits, which link may count twice
+            if (previous != null) {
+                link(previous, false);
+                H.put(previous.hash, previous);
+            }
+            return false;
+        }
+        H.put(entry.hash, entry);
+        return true;
+    }
+
+    private void evict() {
+        while (evictionOrder != null && H.size() > capacity) {
+            Entry entry = evictionOrder.pollFirst();
+            if (entry == null)
+                return;
+            removeWithDescendants(entry);
+        }
+    }
+
+    /**
+     * Removes {@code entry} along with the transactions claiming its outputs, which could not be
+     * mined anymore. The packages of the other transactions are unchanged, only the ancestors left
+     * have fewer descendants.
+     */
+    private void removeWithDescendants(Entry entry) {
+        Set<Entry> removed = getDescendants(entry.children);
+        removed.add(entry);
+        Set<Entry> ancestors = new HashSet<Entry>();
+        for (Entry e : removed)
+            ancestors.addAll(getAncestors(e.parents));
+        ancestors.removeAll(removed);
+        for (Entry e : removed) {
+            H.remove(e.hash, e);
+            detach(e);
+        }
+        for (Entry ancestor : ancestors)
+            ancestor.descendantCount = getDescendants(ancestor.children).size() + 1;
+    }
+
+    /**
+     * Connects {@code entry} to its parents and children in the pool and ranks it
+     *
+     * @return false, leaving the pool unchanged, if {@code checkLimits} and the package limits do
+     *         not allow it
+     */
+    private boolean link(Entry entry, boolean checkLimits) {
+        Set<ByteArrayWrapper> prevTxHashes = new HashSet<ByteArrayWrapper>();
+        List<Entry> parents = new ArrayList<Entry>();
+        for (Transaction.Input in : entry.tx.getInputs()) {
+            ByteArrayWrapper prevTxHash = new ByteArrayWrapper(in.getPrevTxHash());
+            if (!prevTxHashes.add(prevTxHash))
+                continue;
+            Entry parent = H.get(prevTxHash);
+            if (parent != null && parent != entry)
+                parents.add(parent);
+        }
+        List<Entry> children = new ArrayList<Entry>();
+        List<Entry> spending = spenders.get(entry.hash);
+        if (spending != null) {
+            for (Entry child : spending) {
+                if (child != entry)
+                    children.add(child);
+            }
+        }
+
+        // descendants already in the pool, when a transaction comes back after a reorganization,
+        // may share ancestors with entry and are then counted twice, erring on the safe side
+        Set<Entry> ancestors = getAncestors(parents);
+        Set<Entry> descendants = getDescendants(children);
+        if (checkLimits && !isWithinLimits(ancestors, descendants))
+            return false;
+
+        for (Transaction.Input in : entry.tx.getInputs())
+            claimedOutputs.put(new UTXO(in.getPrevTxHash(), in.getOutputIndex()), entry);
+        for (ByteArrayWrapper prevTxHash : prevTxHashes) {
+            List<Entry> entries = spenders.get(prevTxHash);
+            if (entries == null) {
+                entries = new ArrayList<Entry>();
+                spenders.put(prevTxHash, entries);
+            }
+            entries.add(entry);
+        }
+        for (Entry parent : parents) {
+            parent.children.add(entry);
+            entry.parents.add(parent);
+        }
+        for (Entry child : children) {
+            child.parents.add(entry);
+            entry.children.add(child);
+        }
+
+        entry.ancestorCount = ancestors.size() + 1;
+        entry.ancestorFee = entry.fee;
+        entry.ancestorSize = entry.size;
+        for (Entry ancestor : ancestors) {
+            entry.ancestorFee += ancestor.fee;
+            entry.ancestorSize += ancestor.size;
+        }
+        entry.descendantCount = descendants.size() + 1;
+        rank(entry);
+        if (descendants.isEmpty()) {
+            for (Entry ancestor : ancestors)
+                ancestor.descendantCount++;
+        } else {
+            for (Entry descendant : descendants)
+                updatePackage(descendant);
+            for (Entry ancestor : ancestors)
+                ancestor.descendantCount = getDescendants(ancestor.children).size() + 1;
+        }
+        if (evictionOrder != null)
+            evictionOrder.add(entry);
+        return true;
+    }
+
+    /**
+     * @return true if a transaction with {@code ancestors} and {@code descendants} in the pool
+     *         keeps every package within the limits
+     */
+    private static boolean isWithinLimits(Set<Entry> ancestors, Set<Entry> descendants) {
+        if (ancestors.size() + 1 > MAX_ANCESTORS || descendants.size() + 1 > MAX_DESCENDANTS)
+            return false;
+        for (Entry ancestor : ancestors) {
+            if (ancestor.descendantCount + 1 + descendants.size() > MAX_DESCENDANTS)
+                return false;
+        }
+        for (Entry descendant : descendants) {
+            if (descendant.ancestorCount + 1 + ancestors.size() > MAX_ANCESTORS)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Disconnects {@code entry}, which is no longer in the pool, and updates the packages of its
+     * descendants, which lose it, and the number of descendants of its ancestors
+     */
+    private void unlink(Entry entry) {
+        Set<Entry> ancestors = getAncestors(entry.parents);
+        Set<Entry> descendants = getDescendants(entry.children);
+        detach(entry);
+
+        // the descendants of a transaction without ancestors, such as one just mined, only lose it
+        for (Entry descendant : descendants) {
+            if (ancestors.isEmpty()) {
+                descendant.ancestorCount--;
+                descendant.ancestorFee -= entry.fee;
+                descendant.ancestorSize -= entry.size;
+                rank(descendant);
+            } else {
+                updatePackage(descendant);
+            }
+        }
+        for (Entry ancestor : ancestors) {
+            if (descendants.isEmpty())
+                ancestor.descendantCount--;
+            else
+                ancestor.descendantCount = getDescendants(ancestor.children).size() + 1;
+        }
+    }
+
+    /** Removes {@code entry} from the indexes and cuts its links with the other entries */
+    private void detach(Entry entry) {
+        feeIndex.remove(entry.rank);
+        if (evictionOrder != null)
+            evictionOrder.remove(entry);
+        for (Entry parent : entry.parents)
+            parent.children.remove(entry);
+        for (Entry child : entry.children)
+            child.parents.remove(entry);
+        for (Transaction.Input in : entry.tx.getInputs()) {
+            ByteArrayWrapper prevTxHash = new ByteArrayWrapper(in.getPrevTxHash());
+            List<Entry> entries = spenders.get(prevTxHash);
+            if (entries != null && entries.remove(entry) && entries.isEmpty())
+                spenders.remove(prevTxHash);
+            claimedOutputs.remove(new UTXO(in.getPrevTxHash(), in.getOutputIndex()), entry);
+        }
+        entry.parents.clear();
+        entry.children.clear();
+    }
+
+    /** Computes the ancestor package of {@code entry} again from its ancestors, and ranks it */
+    private void updatePackage(Entry entry) {
+        Set<Entry> ancestors = getAncestors(entry.parents);
+        entry.ancestorCount = ancestors.size() + 1;
+        entry.ancestorFee = entry.fee;
+        entry.ancestorSize = entry.size;
+        for (Entry ancestor : ancestors) {
+            entry.ancestorFee += ancestor.fee;
+            entry.ancestorSize += ancestor.size;
+        }
+        rank(entry);
+    }
+
+    /** (Re)inserts {@code entry} in the fee index with its current ancestor package */
+    private void rank(Entry entry) {
+        if (entry.rank != null)
+            feeIndex.remove(entry.rank);
+        entry.rank = new Rank(entry);
+        feeIndex.add(entry.rank);
+    }
+
+    /** Adds the ancestors of {@code entry} missing from {@code selected}, then {@code entry} */
+    private static void addPackage(Entry entry, Set<Entry> selected, LinkedHashSet<Entry> pkg) {
+        if (selected.contains(entry) || pkg.contains(entry))
+            return;
+        for (Entry parent : entry.parents)
+            addPackage(parent, selected, pkg);
+        pkg.add(entry);
+    }
+
+    /** @return {@code parents} and their ancestors */
+    private static Set<Entry> getAncestors(List<Entry> parents) {
+        Set<Entry> ancestors = new HashSet<Entry>();
+        ArrayList<Entry> toVisit = new ArrayList<Entry>(parents);
+        while (!toVisit.isEmpty()) {
+            Entry ancestor = toVisit.remove(toVisit.size() - 1);
+            if (ancestors.add(ancestor))
+                toVisit.addAll(ancestor.parents);
+        }
+        return ancestors;
+    }
+
+    /** @return {@code children} and their descendants */
+    private static Set<Entry> getDescendants(List<Entry> children) {
+        Set<Entry> descendants = new LinkedHashSet<Entry>();
+        ArrayList<Entry> toVisit = new ArrayList<Entry>(children);
+        while (!toVisit.isEmpty()) {
+            Entry descendant = toVisit.remove(toVisit.size() - 1);
+            if (descendants.add(descendant))
+                toVisit.addAll(descendant.children);
+        }
+        return descendants;
+    }
+
+    /** Orders packages by decreasing fee rate, then by arrival */
+    private static final Comparator<Rank> FEE_RATE_COMPARATOR = new Comparator<Rank>() {
+        @Override
+        public int compare(Rank r1, Rank r2) {
+            int byFeeRate = compareProducts(r2.ancestorFee, r1.ancestorSize, r1.ancestorFee, r2.ancestorSize);
+            return byFeeRate != 0 ? byFeeRate : Long.compare(r1.entry.sequence, r2.entry.sequence);
+        }
+    };
+
+    /** Compares {@code a * b} with {@code c * d} exactly, even if the products do not fit in a long */
+    private static int compareProducts(long a, long b, long c, long d) {
+        try {
+            return Long.compare(Math.multiplyExact(a, b), Math.multiplyExact(c, d));
+        } catch (ArithmeticException e) {
+            return BigInteger.valueOf(a).multiply(BigInteger.valueOf(b))
+                    .compareTo(BigInteger.valueOf(c).multiply(BigInteger.valueOf(d)));
+        }
+    }
+
+    private static Comparator<Entry> evictionComparator(EvictionPolicy policy) {
+        if (policy == EvictionPolicy.LOWEST_FEE) {
+            return new Comparator<Entry>() {
+                @Override
+                public int compare(Entry e1, Entry e2) {
+                    int byFee = Long.compare(e1.fee, e2.fee);
+                    return byFee != 0 ? byFee : Long.compare(e1.sequence, e2.sequence);
+                }
+            };
+        }
+        return new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(e1.sequence, e2.sequence);
+            }
+        };
+    }
+
+    private static class Entry {
+        final ByteArrayWrapper hash;
+        final Transaction tx;
+        /** Fee in base units */
+        final long fee;
+        /** Size in bytes of the raw transaction */
+        final long size;
+        /** Order in which the transaction was added to the pool */
+        final long sequence;
+
+        /** Transactions of the pool whose outputs this one claims, read without locking */
+        final List<Entry> parents = new CopyOnWriteArrayList<Entry>();
+        /** Transactions of the pool claiming outputs of this one */
+        final List<Entry> children = new ArrayList<Entry>();
+        /** Number, total fee and size of the transaction and all its ancestors in the pool */
+        int ancestorCount;
+        long ancestorFee;
+        long ancestorSize;
+        /** Number of the transaction and all its descendants in the pool */
+        int descendantCount;
+        /** Position of the transaction in the fee index */
+        Rank rank;
+
+        Entry(ByteArrayWrapper hash, Transaction tx, long fee, long sequence) {
+            this.hash = hash;
+            this.tx = tx;
+            this.fee = fee;
+            this.size = Math.max(1, tx.getRawTxSize());
+            this.sequence = sequence;
+        }
+    }
+
+    /** The ancestor package of an entry when it was ranked, which the fee index is sorted by */
+    private static class Rank {
+        final Entry entry;
+        final long ancestorFee;
+        final long ancestorSize;
+
+        Rank(Entry entry) {
+            this.entry = entry;
+            this.ancestorFee = entry.ancestorFee;
+            this.ancestorSize = entry.ancestorSize;
+        }
+    }
 }
@@ -1,9 +1,28 @@
 import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TxHandler {
 
+    /** Number of inputs up to which duplicate claims are looked for without building a set */
+    private static final int MAX_PAIRWISE_INPUTS = 16;
+
+    /** Transactions found valid, then found invalid by the number of the rule they break */
+    private static final LongAdder[] TX_OUTCOMES = {
+            Metrics.getDefault().counter("tx.valid"),
+            Metrics.getDefault().counter("tx.invalid.missingOutput"),
+            Metrics.getDefault().counter("tx.invalid.signature"),
+            Metrics.getDefault().counter("tx.invalid.doubleClaim"),
+            Metrics.getDefault().counter("tx.invalid.negativeOutput"),
+            Metrics.getDefault().counter("tx.invalid.outputsExceedInputs")
+    };
+
     private final UTXOPool utxoPool;
+    private final boolean verifySignatures;
+    /** Transactions whose outputs may be claimed besides those of the pool, or null */
+    private final TransactionPool transactionPool;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -11,7 +30,28 @@ public class TxHandler {
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, true);
+    }
+
+    /**
+     * Creates a ledger that skips check (2) of {@link #isValidTx} when {@code verifySignatures} is
+     * false, for transactions whose signatures have already been checked by a
+     * {@link SignatureVerifier}.
+     */
+    TxHandler(UTXOPool utxoPool, boolean verifySignatures) {
         this.utxoPool = new UTXOPool(utxoPool);
+        this.verifySignatures = verifySignatures;
+        this.transactionPool = null;
+    }
+
+    /**
+     * Creates a ledger for {@link #isValidTx(Transaction, UTXOPool, TransactionPool)}, which reads
+     * {@code utxoPool} as it is rather than copying it and so never applies a transaction
+     */
+    private TxHandler(UTXOPool utxoPool, TransactionPool transactionPool) {
+        this.utxoPool = utxoPool;
+        this.verifySignatures = true;
+        this.transactionPool = transactionPool;
     }
 
     /**
@@ -24,12 +64,46 @@ public class TxHandler {
      * values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        return tx != null
-                && isContainedInPool(tx)
-                && isValidSignature(tx)
-                && isSingleUTXOinPool(tx)
-                && isNonNegativeOutputValues(tx)
-                && isSameValues(tx);
+        if (tx == null) {
+            return false;
+        }
+        int brokenRule = getBrokenRule(tx);
+        if (Metrics.ENABLED) {
+            TX_OUTCOMES[brokenRule].increment();
+        }
+        return brokenRule == 0;
+    }
+
+    /**
+     * @return true if {@code tx} is valid, as {@link #isValidTx(Transaction)} tells, against the
+     * outputs of {@code utxoPool} and of the transactions of {@code transactionPool}.
+     * {@code utxoPool} is read as it is rather than copied, so it must not be modified meanwhile.
+     */
+    static boolean isValidTx(Transaction tx, UTXOPool utxoPool, TransactionPool transactionPool) {
+        return new TxHandler(utxoPool, transactionPool).isValidTx(tx);
+    }
+
+    /**
+     * @return the number of the first rule of {@link #isValidTx} that {@code tx} breaks, or 0 if it
+     * is valid
+     */
+    private int getBrokenRule(Transaction tx) {
+        if (!isContainedInPool(tx)) {
+            return 1;
+        }
+        if (verifySignatures && !isValidSignature(tx)) {
+            return 2;
+        }
+        if (!isSingleUTXOinPool(tx)) {
+            return 3;
+        }
+        if (!isNonNegativeOutputValues(tx)) {
+            return 4;
+        }
+        if (!isSameValues(tx)) {
+            return 5;
+        }
+        return 0;
     }
 
 
@@ -37,42 +111,281 @@ public class TxHandler {
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     * <p>
+     * The transactions are checked in passes over the array, in index order, until a pass accepts
+     * none: a transaction whose outputs are claimed by one of lower index is only applied at the
+     * next pass, which decides which of two transactions claiming the same output is accepted.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        int[] indices = new int[possibleTxs.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+
+        List<Integer> confirmed = handle(possibleTxs, indices, null);
+        Transaction[] resultTx = new Transaction[confirmed.size()];
+        for (int i = 0; i < resultTx.length; i++) {
+            resultTx[i] = possibleTxs[confirmed.get(i)];
+        }
+
+        return resultTx;
+    }
+
+    /**
+     * Same as {@link #handleTxs}, checking the transactions that neither claim the same outputs nor
+     * depend on each other, directly or not, at the same time. Returns the same transactions in
+     * the same order, and leaves the current UTXO pool in the same state.
+     */
+    public Transaction[] handleTxsInParallel(Transaction[] possibleTxs) {
+        List<int[]> groups = getIndependentGroups(possibleTxs);
+        if (groups.size() < 2) {
+            return handleTxs(possibleTxs);
+        }
+
+        // each group is checked against its own copy of the current pool
+        TxHandler[] handlers = new TxHandler[groups.size()];
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = new TxHandler(utxoPool, verifySignatures);
+        }
+        List<List<Integer>> confirmed = new ArrayList<>(Collections.nCopies(groups.size(), (List<Integer>) null));
+        final int[] passes = new int[possibleTxs.length];
+        ForkJoinPool.commonPool().invoke(new HandleAction(handlers, possibleTxs, groups, confirmed, passes, 0,
+                groups.size()));
+
+        // handleTxs applies the transactions by pass, then by index, and the groups do not change
+        // the pass at which each other's transactions are applied: the next transaction applied is
+        // the next confirmed transaction of one of the groups
+        int[] groupOf = new int[possibleTxs.length];
+        int[] next = new int[groups.size()];
+        PriorityQueue<Integer> heads = new PriorityQueue<>(groups.size(), new Comparator<Integer>() {
+            @Override
+            public int compare(Integer index1, Integer index2) {
+                if (passes[index1] != passes[index2]) {
+                    return Integer.compare(passes[index1], passes[index2]);
+                }
+                return Integer.compare(index1, index2);
+            }
+        });
+        for (int i = 0; i < groups.size(); i++) {
+            if (!confirmed.get(i).isEmpty()) {
+                int head = confirmed.get(i).get(0);
+                groupOf[head] = i;
+                heads.add(head);
+            }
+        }
+
         List<Transaction> confirmedTransactions = new ArrayList<>();
-        List<Transaction> possibleTransactions = new ArrayList<>();
+        while (!heads.isEmpty()) {
+            int index = heads.poll();
+            Transaction transaction = possibleTxs[index];
+            removeOldUTXO(transaction);
+            addNewUTXO(transaction);
+            confirmedTransactions.add(transaction);
+
+            int group = groupOf[index];
+            if (++next[group] < confirmed.get(group).size()) {
+                int head = confirmed.get(group).get(next[group]);
+                groupOf[head] = group;
+                heads.add(head);
+            }
+        }
 
-        for (int i = 0; i < possibleTxs.length; i++) {
-            possibleTransactions.add(possibleTxs[i]);
+        return confirmedTransactions.toArray(new Transaction[0]);
+    }
+
+    /**
+     * Checks the transactions of {@code possibleTxs} at {@code indices}, in increasing order,
+     * applying the valid ones to the current UTXO pool in the passes described by
+     * {@link #handleTxs}. A transaction is only checked once the transactions whose outputs it
+     * claims are applied, and never again: the outputs it claims can only be spent afterwards.
+     *
+     * @param passes if not null, receives at the index of each valid transaction the number of the
+     *        pass at which it was applied
+     * @return the indices of the valid transactions, in the order they were applied
+     */
+    private List<Integer> handle(Transaction[] possibleTxs, int[] indices, int[] passes) {
+        List<Integer> confirmedTransactions = new ArrayList<>();
+
+        // transactions waiting for the outputs of other transactions of the epoch, by the hash of
+        // the transaction they wait for. Transactions are referred to by their position in indices
+        Map<ByteArrayWrapper, List<Integer>> waitingTransactions = new HashMap<>();
+        int[] missingParents = new int[indices.length];
+        // transactions to check at this pass and at the next one
+        PriorityQueue<Integer> readyTransactions = new PriorityQueue<>();
+        PriorityQueue<Integer> nextPass = new PriorityQueue<>();
+        int pass = 0;
+
+        Set<ByteArrayWrapper> possibleHashes = new HashSet<>();
+        for (int index : indices) {
+            Transaction transaction = possibleTxs[index];
+            if (transaction != null && transaction.getHash() != null) {
+                possibleHashes.add(new ByteArrayWrapper(transaction.getHash()));
+            }
         }
 
-        boolean haveValidTransaction = true;
+        for (int i = 0; i < indices.length; i++) {
+            Set<ByteArrayWrapper> parents = getMissingParents(possibleTxs[indices[i]], possibleHashes);
+            if (parents == null) {
+                continue;
+            }
 
-        while (haveValidTransaction) {
-            haveValidTransaction = false;
+            for (ByteArrayWrapper parent : parents) {
+                List<Integer> waiting = waitingTransactions.get(parent);
+                if (waiting == null) {
+                    waiting = new ArrayList<>();
+                    waitingTransactions.put(parent, waiting);
+                }
+                waiting.add(i);
+            }
+            missingParents[i] = parents.size();
+            if (missingParents[i] == 0) {
+                readyTransactions.add(i);
+            }
+        }
 
-            for (Iterator<Transaction> iterator = possibleTransactions.listIterator(); iterator.hasNext();) {
-                Transaction transaction = iterator.next();
-                if (isValidTx(transaction)) {
-                    removeOldUTXO(transaction);
-                    addNewUTXO(transaction);
+        while (!readyTransactions.isEmpty()) {
+            int i = readyTransactions.poll();
+            Transaction transaction = possibleTxs[indices[i]];
+            if (isValidTx(transaction)) {
+                removeOldUTXO(transaction);
+                addNewUTXO(transaction);
 
-                    confirmedTransactions.add(transaction);
+                confirmedTransactions.add(indices[i]);
+                if (passes != null) {
+                    passes[indices[i]] = pass;
+                }
 
-                    iterator.remove();
-                    haveValidTransaction = true;
+                List<Integer> children = waitingTransactions.remove(new ByteArrayWrapper(transaction.getHash()));
+                if (children != null) {
+                    for (int child : children) {
+                        if (--missingParents[child] == 0) {
+                            // this pass has already gone by the children of lower index
+                            if (child > i) {
+                                readyTransactions.add(child);
+                            } else {
+                                nextPass.add(child);
+                            }
+                        }
+                    }
                 }
             }
+            if (readyTransactions.isEmpty()) {
+                PriorityQueue<Integer> ready = readyTransactions;
+                readyTransactions = nextPass;
+                nextPass = ready;
+                pass++;
+            }
         }
 
-        int size = confirmedTransactions.size();
-        Transaction[] resultTx = new Transaction[size];
+        return confirmedTransactions;
+    }
 
-        for (int i = 0; i < size; i++) {
-            resultTx[i] = confirmedTransactions.get(i);
+    /**
+     * Splits the non-null transactions of {@code possibleTxs} into groups such that no transaction
+     * claims an output claimed or created by a transaction of another group
+     *
+     * @return the indices of the transactions of each group, in increasing order
+     */
+    private static List<int[]> getIndependentGroups(Transaction[] possibleTxs) {
+        int[] parent = new int[possibleTxs.length];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
         }
 
-        return resultTx;
+        Map<ByteArrayWrapper, Integer> creators = new HashMap<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            Transaction tx = possibleTxs[i];
+            if (tx != null && tx.getHash() != null) {
+                Integer other = creators.get(new ByteArrayWrapper(tx.getHash()));
+                if (other == null) {
+                    creators.put(new ByteArrayWrapper(tx.getHash()), i);
+                } else {
+                    union(parent, i, other);
+                }
+            }
+        }
+
+        Map<UTXO, Integer> claimers = new HashMap<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            Transaction tx = possibleTxs[i];
+            if (tx == null) {
+                continue;
+            }
+            for (Transaction.Input input : tx.getInputs()) {
+                Integer creator = creators.get(new ByteArrayWrapper(input.getPrevTxHash()));
+                if (creator != null) {
+                    union(parent, i, creator);
+                }
+                UTXO utxo = new UTXO(input.getPrevTxHash(), input.getOutputIndex());
+                Integer other = claimers.get(utxo);
+                if (other == null) {
+                    claimers.put(utxo, i);
+                } else {
+                    union(parent, i, other);
+                }
+            }
+        }
+
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            if (possibleTxs[i] == null) {
+                continue;
+            }
+            int root = find(parent, i);
+            List<Integer> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(root, group);
+            }
+            group.add(i);
+        }
+
+        List<int[]> result = new ArrayList<>(groups.size());
+        for (List<Integer> group : groups.values()) {
+            int[] indices = new int[group.size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = group.get(i);
+            }
+            result.add(indices);
+        }
+        return result;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int i, int j) {
+        parent[find(parent, i)] = find(parent, j);
+    }
+
+    /**
+     * @return the hashes of the transactions of {@code possibleHashes} whose outputs {@code tx}
+     * claims and which are not in the current UTXO pool yet, or null if {@code tx} claims an output
+     * that neither is in the pool nor can be added to it during this epoch
+     */
+    private Set<ByteArrayWrapper> getMissingParents(final Transaction tx, final Set<ByteArrayWrapper> possibleHashes) {
+        if (tx == null) {
+            return null;
+        }
+
+        Set<ByteArrayWrapper> parents = new HashSet<>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            if (!utxoPool.contains(input.getPrevTxHash(), input.getOutputIndex())) {
+                ByteArrayWrapper parent = new ByteArrayWrapper(input.getPrevTxHash());
+                if (!possibleHashes.contains(parent)) {
+                    return null;
+                }
+                parents.add(parent);
+            }
+        }
+
+        return parents;
     }
 
     //(1) all outputs claimed by {@code tx} are in the current UTXO pool,
@@ -80,8 +393,7 @@ public class TxHandler {
     private boolean isContainedInPool(final Transaction tx) {
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            if (!utxoPool.contains(utxo)) {
+            if (getTxOutput(input.getPrevTxHash(), input.getOutputIndex()) == null) {
                 return false;
             }
         }
@@ -93,14 +405,11 @@ public class TxHandler {
     private boolean isValidSignature(final Transaction tx) {
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            Transaction.Output txOutput = utxoPool.getTxOutput(utxo);
+            Transaction.Output txOutput = getTxOutput(input.getPrevTxHash(), input.getOutputIndex());
 
-            PublicKey publicKey = txOutput.address;
-            byte[] message = tx.getRawDataToSign(i);
-            byte[] signature = input.signature;
+            PublicKey publicKey = txOutput.getAddress();
 
-            boolean isValid = Crypto.verifySignature(publicKey, message, signature);
+            boolean isValid = SignatureCache.getDefault().verify(tx, i, publicKey);
 
             if (!isValid) {
                 return false;
@@ -112,10 +421,24 @@ public class TxHandler {
 
     //(3) no UTXO is claimed multiple times by {@code tx},
     private boolean isSingleUTXOinPool(final Transaction tx) {
+        if (tx.numInputs() <= MAX_PAIRWISE_INPUTS) {
+            for (int i = 1; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                for (int j = 0; j < i; j++) {
+                    Transaction.Input other = tx.getInput(j);
+                    if (input.getOutputIndex() == other.getOutputIndex()
+                            && Arrays.equals(input.getPrevTxHash(), other.getPrevTxHash())) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
         Set<UTXO> seenUTXO = new HashSet<>();
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            UTXO utxo = new UTXO(input.getPrevTxHash(), input.getOutputIndex());
             if (!seenUTXO.add(utxo)) {
                 return false;
             }
@@ -127,7 +450,7 @@ public class TxHandler {
     //(4) all of {@code tx}s output values are non-negative, and
     private boolean isNonNegativeOutputValues(final Transaction tx) {
         for (Transaction.Output output : tx.getOutputs()) {
-            if (output.value < 0) {
+            if (output.getValue() < 0) {
                 return false;
             }
         }
@@ -137,29 +460,47 @@ public class TxHandler {
 
     //(5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
     //     values; and false otherwise.
+    //     Sums that do not fit in a long make the transaction invalid, rather than wrap around
     private boolean isSameValues(Transaction tx) {
-        double totalIn = 0;
-        double totalOut = 0;
+        long totalIn = 0;
+        long totalOut = 0;
 
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+        try {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
 
-            Transaction.Output txOutput = utxoPool.getTxOutput(utxo);
-            totalIn += txOutput.value;
-        }
+                Transaction.Output txOutput = getTxOutput(input.getPrevTxHash(), input.getOutputIndex());
+                totalIn = Math.addExact(totalIn, txOutput.getValue());
+            }
 
-        for (Transaction.Output output : tx.getOutputs()) {
-            totalOut += output.value;
+            for (Transaction.Output output : tx.getOutputs()) {
+                totalOut = Math.addExact(totalOut, output.getValue());
+            }
+        } catch (ArithmeticException e) {
+            return false;
         }
 
         return totalIn >= totalOut;
     }
 
+    /**
+     * @return the output with index {@code index} of the transaction whose hash is {@code txHash}
+     * if it is in the current UTXO pool, or else an output of a transaction of the transaction
+     * pool, if any; null otherwise
+     */
+    private Transaction.Output getTxOutput(byte[] txHash, int index) {
+        Transaction.Output txOutput = utxoPool.getTxOutput(txHash, index);
+        if (txOutput == null && transactionPool != null && index >= 0) {
+            Transaction prevTx = transactionPool.getTransaction(txHash);
+            txOutput = prevTx == null ? null : prevTx.getOutput(index);
+        }
+        return txOutput;
+    }
+
     private void removeOldUTXO(final Transaction transaction) {
         for (int j = 0; j < transaction.numInputs(); j++) {
             Transaction.Input input = transaction.getInput(j);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            UTXO utxo = new UTXO(input.getPrevTxHash(), input.getOutputIndex());
             utxoPool.removeUTXO(utxo);
         }
     }
@@ -175,4 +516,41 @@ public class TxHandler {
     public UTXOPool getUTXOPool() {
         return utxoPool;
     }
+
+    /** Handles groups {@code from} to {@code to} of the transactions, each with its own handler */
+    private static class HandleAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final TxHandler[] handlers;
+        private final Transaction[] possibleTxs;
+        private final List<int[]> groups;
+        private final List<List<Integer>> confirmed;
+        private final int[] passes;
+        private final int from;
+        private final int to;
+
+        HandleAction(TxHandler[] handlers, Transaction[] possibleTxs, List<int[]> groups,
+                     List<List<Integer>> confirmed, int[] passes, int from, int to) {
+            this.handlers = handlers;
+            this.possibleTxs = possibleTxs;
+            this.groups = groups;
+            this.confirmed = confirmed;
+            this.passes = passes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HandleAction(handlers, possibleTxs, groups, confirmed, passes, from, middle),
+                        new HandleAction(handlers, possibleTxs, groups, confirmed, passes, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                confirmed.set(i, handlers[i].handle(possibleTxs, groups.get(i), passes));
+            }
+        }
+    }
 }
@@ -1,25 +1,80 @@
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class UTXO implements Comparable<UTXO> {
 
-    /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    /** Length of the SHA-256 transaction hashes, which are stored as four longs */
+    private static final int HASH_LENGTH = 32;
+
+    /** Flips the sign bit of every byte, so that unsigned longs compare like signed bytes */
+    private static final long SIGN_BITS = 0x8080808080808080L;
+
+    /** Hash of the transaction from which this UTXO originates, as four big-endian longs */
+    private final long h0, h1, h2, h3;
+
+    /** Hash of the transaction from which this UTXO originates, if not {@code HASH_LENGTH} long */
+    private final byte[] txHash;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
+
+    private final int hashCode;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        if (txHash.length == HASH_LENGTH) {
+            h0 = readLong(txHash, 0);
+            h1 = readLong(txHash, 8);
+            h2 = readLong(txHash, 16);
+            h3 = readLong(txHash, 24);
+            this.txHash = null;
+        } else {
+            h0 = h1 = h2 = h3 = 0;
+            this.txHash = Arrays.copyOf(txHash, txHash.length);
+        }
         this.index = index;
+        this.hashCode = hashCode(txHash, index);
     }
 
     /** @return the transaction hash of this UTXO */
     public byte[] getTxHash() {
-        return txHash;
+        if (txHash != null)
+            return txHash;
+        byte[] hash = new byte[HASH_LENGTH];
+        writeLong(hash, 0, h0);
+        writeLong(hash, 8, h1);
+        writeLong(hash, 16, h2);
+        writeLong(hash, 24, h3);
+        return hash;
+    }
+
+    /**
+     * @return true if the transaction hash of this UTXO is equal to {@code txHash}, which unlike
+     *         {@code Arrays.equals(getTxHash(), txHash)} does not copy the hash
+     */
+    public boolean hashEquals(byte[] txHash) {
+        if (this.txHash != null)
+            return Arrays.equals(this.txHash, txHash);
+        return txHash.length == HASH_LENGTH
+                && h0 == readLong(txHash, 0)
+                && h1 == readLong(txHash, 8)
+                && h2 == readLong(txHash, 16)
+                && h3 == readLong(txHash, 24);
+    }
+
+    /**
+     * @return true if the transaction hash of this UTXO is the 32 bytes of {@code b} at
+     *         {@code offset}, read in place
+     */
+    boolean hashEquals(ByteBuffer b, int offset) {
+        return txHash == null
+                && h0 == b.getLong(offset)
+                && h1 == b.getLong(offset + 8)
+                && h2 == b.getLong(offset + 16)
+                && h3 == b.getLong(offset + 24);
     }
 
     /** @return the index of this UTXO */
@@ -27,6 +82,11 @@ public class UTXO implements Comparable<UTXO> {
         return index;
     }
 
+    /** @return true if this UTXO is the output with index {@code index} of transaction {@code txHash} */
+    public boolean matches(byte[] txHash, int index) {
+        return this.index == index && hashEquals(txHash);
+    }
+
     /**
      * Compares this UTXO to the one specified by {@code other}, considering them equal if they have
      * {@code txHash} arrays with equal contents and equal {@code index} values
@@ -40,15 +100,10 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
-            return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return hashCode == utxo.hashCode
+                && index == utxo.index
+                && h0 == utxo.h0 && h1 == utxo.h1 && h2 == utxo.h2 && h3 == utxo.h3
+                && Arrays.equals(txHash, utxo.txHash);
     }
 
     /**
@@ -56,36 +111,71 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
+        return hashCode;
+    }
+
+    /** @return the hash code of the UTXO for output {@code index} of transaction {@code txHash} */
+    static int hashCode(byte[] txHash, int index) {
+        if (txHash.length == HASH_LENGTH) {
+            return hashCode(readLong(txHash, 0), readLong(txHash, 8), readLong(txHash, 16),
+                    readLong(txHash, 24), index);
+        }
+        long hash = Arrays.hashCode(txHash);
         hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
-        return hash;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * @return the hash code of the UTXO for output {@code index} of the transaction whose 32-byte
+     *         hash is made of the big-endian longs {@code h0} to {@code h3}
+     */
+    static int hashCode(long h0, long h1, long h2, long h3, int index) {
+        long hash = h0;
+        hash = hash * 31 + h1;
+        hash = hash * 31 + h2;
+        hash = hash * 31 + h3;
+        hash = hash * 17 + index;
+        return (int) (hash ^ (hash >>> 32));
     }
 
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (in > index)
-            return -1;
-        else if (in < index)
-            return 1;
-        else {
-            int len1 = txHash.length;
-            int len2 = hash.length;
-            if (len2 > len1)
+        if (utxo.index != index)
+            return index < utxo.index ? -1 : 1;
+        if (txHash == null && utxo.txHash == null) {
+            int cmp = Long.compareUnsigned(h0 ^ SIGN_BITS, utxo.h0 ^ SIGN_BITS);
+            if (cmp == 0)
+                cmp = Long.compareUnsigned(h1 ^ SIGN_BITS, utxo.h1 ^ SIGN_BITS);
+            if (cmp == 0)
+                cmp = Long.compareUnsigned(h2 ^ SIGN_BITS, utxo.h2 ^ SIGN_BITS);
+            if (cmp == 0)
+                cmp = Long.compareUnsigned(h3 ^ SIGN_BITS, utxo.h3 ^ SIGN_BITS);
+            return Integer.signum(cmp);
+        }
+        byte[] hash = utxo.getTxHash();
+        byte[] ownHash = getTxHash();
+        if (hash.length != ownHash.length)
+            return ownHash.length < hash.length ? -1 : 1;
+        for (int i = 0; i < ownHash.length; i++) {
+            if (hash[i] > ownHash[i])
                 return -1;
-            else if (len2 < len1)
+            else if (hash[i] < ownHash[i])
                 return 1;
-            else {
-                for (int i = 0; i < len1; i++) {
-                    if (hash[i] > txHash[i])
-                        return -1;
-                    else if (hash[i] < txHash[i])
-                        return 1;
-                }
-                return 0;
-            }
+        }
+        return 0;
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++)
+            value = (value << 8) | (b[i] & 0xFF);
+        return value;
+    }
+
+    private static void writeLong(byte[] b, int offset, long value) {
+        for (int i = offset + 7; i >= offset; i--) {
+            b[i] = (byte) value;
+            value >>>= 8;
         }
     }
 }
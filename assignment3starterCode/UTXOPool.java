@@ -1,32 +1,105 @@
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 public class UTXOPool {
 
+    /** Value of a UTXO removed from the pool, in a layer or in {@code H} */
+    private static final Object REMOVED = new Object();
+
+    /** Size of a reference in the arrays of a table, assuming compressed references */
+    private static final int REFERENCE_BYTES = 4;
+
+    private static final LongAdder MERGES = Metrics.getDefault().counter("utxo.merge");
+    private static final LongAdder MERGE_BYTES = Metrics.getDefault().counter("utxo.merge.bytes");
+
+    /**
+     * Immutable part of the pool, possibly shared with other pools. Each layer records the UTXOs
+     * added on top of its parent, and the UTXOs removed from it
+     */
+    private Layer base;
+
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * The changes made to this pool since it was created or last copied, in the same format as a
+     * layer. Never shared
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOTable H;
+
+    /** Number of UTXOs visible through this pool */
+    private int size;
+
+    /**
+     * Off-heap UTXOs under the layers, or null. The pool created on a store writes to it directly,
+     * while copies of that pool keep their changes on top of the store, which they can only read
+     * as long as it is not modified.
+     */
+    private MappedUTXOStore store;
+    private boolean writesToStore;
+    /** Generation of {@code store} the layers of this pool were made on top of */
+    private long storeGeneration;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new UTXOTable();
+    }
+
+    /** Creates a new UTXOPool whose UTXOs are kept in, and whose changes are written to, {@code store} */
+    public UTXOPool(MappedUTXOStore store) {
+        H = new UTXOTable();
+        this.store = store;
+        writesToStore = true;
+        size = store.size();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. The copy shares the contents of
+     * {@code uPool} and only records its own changes, so it takes constant time and both pools
+     * can be modified independently afterwards.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        uPool.freeze();
+        base = uPool.base;
+        H = new UTXOTable();
+        size = uPool.size;
+        store = uPool.store;
+        if (store != null)
+            storeGeneration = uPool.writesToStore ? store.getGeneration() : uPool.storeGeneration;
     }
 
-    /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
+    /**
+     * Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool
+     *
+     * @throws IllegalArgumentException if {@code txOut} is null
+     */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        if (txOut == null)
+            throw new IllegalArgumentException("the output of a UTXO must not be null");
+        if (writesToStore) {
+            store.addUTXO(utxo, txOut);
+            size = store.size();
+            return;
+        }
+        if (!contains(utxo))
+            size++;
         H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        if (writesToStore) {
+            store.removeUTXO(utxo);
+            size = store.size();
+            return;
+        }
+        if (!contains(utxo))
+            return;
+        size--;
+        if (base == null && store == null)
+            H.remove(utxo);
+        else
+            H.put(utxo, REMOVED);
     }
 
     /**
@@ -34,21 +107,132 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        if (writesToStore)
+            return store.getTxOutput(ut);
+        Object txOut = H.get(ut);
+        for (Layer layer = base; txOut == null && layer != null; layer = layer.parent)
+            txOut = layer.entries.get(ut);
+        if (txOut == null && store != null)
+            return readStore().getTxOutput(ut);
+        return txOut == REMOVED ? null : (Transaction.Output) txOut;
+    }
+
+    /**
+     * @return the transaction output with index {@code index} of the transaction whose hash is
+     *         {@code txHash}, or null if it is not in the pool. Does not allocate.
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (writesToStore)
+            return store.getTxOutput(txHash, index);
+        Object txOut = H.get(txHash, index);
+        for (Layer layer = base; txOut == null && layer != null; layer = layer.parent)
+            txOut = layer.entries.get(txHash, index);
+        if (txOut == null && store != null)
+            return readStore().getTxOutput(txHash, index);
+        return txOut == REMOVED ? null : (Transaction.Output) txOut;
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return getTxOutput(utxo) != null;
+    }
+
+    /**
+     * @return true if the output with index {@code index} of the transaction whose hash is
+     *         {@code txHash} is in the pool. Does not allocate.
+     */
+    public boolean contains(byte[] txHash, int index) {
+        return getTxOutput(txHash, index) != null;
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return size;
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
+        if (writesToStore)
+            return store.getAllUTXO();
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size);
+        Set<UTXO> seen = base == null && store == null ? null : new HashSet<UTXO>();
+        collect(H, seen, allUTXO);
+        for (Layer layer = base; layer != null; layer = layer.parent)
+            collect(layer.entries, seen, allUTXO);
+        if (store != null) {
+            for (UTXO ut : readStore().getAllUTXO()) {
+                if (seen.add(ut))
+                    allUTXO.add(ut);
+            }
         }
         return allUTXO;
     }
+
+    /** @return the store under the layers of this pool, provided it was not modified since */
+    private MappedUTXOStore readStore() {
+        if (store.getGeneration() != storeGeneration)
+            throw new ConcurrentModificationException("the store under this copy has been modified");
+        return store;
+    }
+
+    /** Adds the UTXOs of {@code entries} not in {@code seen} yet, if not null, to {@code allUTXO} */
+    private static void collect(UTXOTable entries, Set<UTXO> seen, ArrayList<UTXO> allUTXO) {
+        for (int i = 0; i < entries.capacity(); i++) {
+            UTXO ut = entries.keyAt(i);
+            if (ut != null && (seen == null || seen.add(ut)) && entries.valueAt(i) != REMOVED)
+                allUTXO.add(ut);
+        }
+    }
+
+    /**
+     * Moves the pending changes of this pool into a new immutable layer so that they can be shared
+     * with a copy. The new layer is merged with the layers below it that are less than twice as
+     * large, so that the layers at least double in size down the stack: a lookup probes
+     * O(log n) tables, and a UTXO is copied O(log n) times over its life rather than the whole
+     * pool every few blocks.
+     */
+    private void freeze() {
+        if (H.isEmpty())
+            return;
+        Layer layer = new Layer(H, base);
+        H = new UTXOTable();
+        while (layer.parent != null && layer.entries.size() * 2 > layer.parent.entries.size())
+            layer = merged(layer.parent, layer);
+        base = layer;
+    }
+
+    /**
+     * @return a layer with the entries of {@code upper} applied on top of those of {@code lower},
+     *         which it replaces. The removals are dropped at the bottom of a pool without a store,
+     *         where there is nothing left for them to hide.
+     */
+    private Layer merged(Layer lower, Layer upper) {
+        boolean bottom = lower.parent == null && store == null;
+        UTXOTable entries = new UTXOTable(lower.entries, upper.entries.size());
+        for (int i = 0; i < upper.entries.capacity(); i++) {
+            UTXO ut = upper.entries.keyAt(i);
+            if (ut == null)
+                continue;
+            Object txOut = upper.entries.valueAt(i);
+            if (txOut == REMOVED && bottom)
+                entries.remove(ut);
+            else
+                entries.put(ut, txOut);
+        }
+        if (Metrics.ENABLED) {
+            MERGES.increment();
+            MERGE_BYTES.add(2L * REFERENCE_BYTES * entries.capacity());
+        }
+        return new Layer(entries, lower.parent);
+    }
+
+    private static class Layer {
+        final UTXOTable entries;
+        final Layer parent;
+
+        Layer(UTXOTable entries, Layer parent) {
+            this.entries = entries;
+            this.parent = parent;
+        }
+    }
 }
@@ -0,0 +1,149 @@
+/**
+ * An open-addressing hash table from UTXOs to values, with linear probing. A UTXO can be looked up
+ * by its transaction hash and index without creating a {@code UTXO}.
+ */
+class UTXOTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private UTXO[] keys;
+    private Object[] values;
+    private int size;
+
+    UTXOTable() {
+        this(0);
+    }
+
+    /** Creates a table that can hold {@code expectedSize} entries without growing */
+    UTXOTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize)
+            capacity <<= 1;
+        keys = new UTXO[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * Creates a copy of {@code table} that can hold {@code extraSize} more entries without
+     * growing. The arrays are copied as they are when they are large enough.
+     */
+    UTXOTable(UTXOTable table, int extraSize) {
+        if ((table.size + extraSize) <= table.keys.length * 3 / 4) {
+            keys = table.keys.clone();
+            values = table.values.clone();
+            size = table.size;
+            return;
+        }
+        int capacity = table.keys.length;
+        while (capacity * 3 / 4 < table.size + extraSize)
+            capacity <<= 1;
+        keys = table.keys;
+        values = table.values;
+        size = table.size;
+        resize(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** @return the value mapped to {@code utxo}, or null if there is none */
+    Object get(UTXO utxo) {
+        int mask = keys.length - 1;
+        for (int i = slot(utxo.hashCode(), mask); keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(utxo))
+                return values[i];
+        }
+        return null;
+    }
+
+    /** @return the value mapped to the UTXO of output {@code index} of {@code txHash}, or null */
+    Object get(byte[] txHash, int index) {
+        int mask = keys.length - 1;
+        for (int i = slot(UTXO.hashCode(txHash, index), mask); keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].matches(txHash, index))
+                return values[i];
+        }
+        return null;
+    }
+
+    /** Maps {@code utxo} to {@code value}, which must not be null */
+    void put(UTXO utxo, Object value) {
+        int mask = keys.length - 1;
+        int i = slot(utxo.hashCode(), mask);
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(utxo)) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = utxo;
+        values[i] = value;
+        if (++size > keys.length * 3 / 4)
+            resize(keys.length << 1);
+    }
+
+    /** Removes the mapping of {@code utxo}, if any */
+    void remove(UTXO utxo) {
+        int mask = keys.length - 1;
+        int i = slot(utxo.hashCode(), mask);
+        while (keys[i] != null && !keys[i].equals(utxo))
+            i = (i + 1) & mask;
+        if (keys[i] == null)
+            return;
+
+        // shift back the following entries of the run that would no longer be reachable
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j].hashCode(), mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = null;
+        values[hole] = null;
+        size--;
+    }
+
+    /** @return the number of slots, for iterating with {@link #keyAt} and {@link #valueAt} */
+    int capacity() {
+        return keys.length;
+    }
+
+    /** @return the key in slot {@code i}, or null if the slot is empty */
+    UTXO keyAt(int i) {
+        return keys[i];
+    }
+
+    Object valueAt(int i) {
+        return values[i];
+    }
+
+    private void resize(int capacity) {
+        UTXO[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new UTXO[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null)
+                continue;
+            int j = slot(oldKeys[i].hashCode(), mask);
+            while (keys[j] != null)
+                j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    private static int slot(int hashCode, int mask) {
+        int h = hashCode * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
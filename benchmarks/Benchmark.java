@@ -0,0 +1,35 @@
+/**
+ * A piece of code measured by the {@link BenchmarkRunner}. The state it works on is prepared by
+ * {@link #setUp()}, outside of the measurement, and {@link #run()} is called over and over.
+ */
+abstract class Benchmark {
+
+    private final String name;
+
+    Benchmark(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /** Prepares the state the invocations work on */
+    void setUp() throws Exception {
+    }
+
+    /**
+     * One invocation of the benchmark. Its result is consumed by the runner, so that the work
+     * leading to it is not optimized away.
+     */
+    abstract Object run() throws Exception;
+
+    /** Releases the state prepared by {@link #setUp()} */
+    void tearDown() {
+    }
+
+    /** @return the number of operations one invocation stands for, which scores are given per */
+    int operationsPerInvocation() {
+        return 1;
+    }
+}
@@ -0,0 +1,173 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks of the validation and block chain hot paths, in the manner of JMH: each
+ * benchmark is warmed up, then measured over a few iterations of fixed duration, and scored in
+ * microseconds per operation. Like the GC profiler of JMH, the runner reports the allocation rate,
+ * the bytes allocated per operation and the garbage collections during the measurement. The error
+ * of a score is the standard deviation of the measurement iterations.
+ * <p>
+ * JMH itself cannot be used: it requires benchmarks outside of the default package, which the
+ * classes under test are in. To run the benchmarks whose name matches {@code regex}, or all of
+ * them:
+ *
+ * <pre>
+ * javac -d out/benchmarks ../assignment3starterCode/*.java *.java
+ * java -Xmx8g -cp out/benchmarks BenchmarkRunner [regex]
+ * </pre>
+ *
+ * The number and duration of the iterations are set by the {@code bench.warmup},
+ * {@code bench.iterations} and {@code bench.millis} system properties.
+ */
+public class BenchmarkRunner {
+
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 3);
+    private static final int MEASUREMENT_ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_MILLIS = Long.getLong("bench.millis", 1000);
+
+    /** Consumes the results of the invocations */
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = args.length > 0 ? Pattern.compile(args[0]) : null;
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.addAll(ValidationBenchmarks.all());
+        benchmarks.addAll(ChainBenchmarks.all());
+
+        System.out.println(String.format(Locale.ROOT, "%-56s %4s %14s %12s  %s",
+                "Benchmark", "Cnt", "Score", "Error", "Units"));
+        for (Benchmark benchmark : benchmarks) {
+            if (filter == null || filter.matcher(benchmark.getName()).find())
+                run(benchmark);
+        }
+    }
+
+    private static void run(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                iterate(benchmark);
+            System.gc();
+
+            double[] scores = new double[MEASUREMENT_ITERATIONS];
+            long operations = 0;
+            long nanos = 0;
+            long allocated = 0;
+            long gcCount = -gcCount();
+            long gcMillis = -gcMillis();
+            for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+                Iteration iteration = iterate(benchmark);
+                scores[i] = iteration.nanos / 1000.0 / iteration.operations;
+                operations += iteration.operations;
+                nanos += iteration.nanos;
+                allocated += iteration.allocated;
+            }
+            gcCount += gcCount();
+            gcMillis += gcMillis();
+
+            String name = benchmark.getName();
+            print(name, MEASUREMENT_ITERATIONS, mean(scores), error(scores), "us/op");
+            if (allocated >= 0) {
+                print(name + ":gc.alloc.rate", MEASUREMENT_ITERATIONS, allocated * 1e3 / nanos, Double.NaN, "MB/sec");
+                print(name + ":gc.alloc.rate.norm", MEASUREMENT_ITERATIONS, (double) allocated / operations, Double.NaN, "B/op");
+            }
+            print(name + ":gc.count", MEASUREMENT_ITERATIONS, gcCount, Double.NaN, "counts");
+            print(name + ":gc.time", MEASUREMENT_ITERATIONS, gcMillis, Double.NaN, "ms");
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /** Invokes {@code benchmark} for {@code ITERATION_MILLIS} */
+    private static Iteration iterate(Benchmark benchmark) throws Exception {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_MILLIS * 1000000;
+        long invocations = 0;
+        long now;
+        int consumed = 0;
+        do {
+            Object result = benchmark.run();
+            consumed ^= System.identityHashCode(result);
+            invocations++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink ^= consumed;
+
+        Iteration iteration = new Iteration();
+        iteration.operations = invocations * benchmark.operationsPerInvocation();
+        iteration.nanos = now - start;
+        long allocatedAfter = allocatedBytes();
+        iteration.allocated = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+        return iteration;
+    }
+
+    /**
+     * @return the bytes allocated so far by the live threads, which include the worker threads of
+     *         the common fork/join pool, or -1 if the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled())
+            return -1;
+        long total = 0;
+        for (long allocated : allocations.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0)
+                total += allocated;
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values)
+            sum += value;
+        return sum / values.length;
+    }
+
+    /** @return the standard deviation of {@code values}, or NaN if there is only one */
+    private static double error(double[] values) {
+        if (values.length < 2)
+            return Double.NaN;
+        double mean = mean(values);
+        double squares = 0;
+        for (double value : values)
+            squares += (value - mean) * (value - mean);
+        return Math.sqrt(squares / (values.length - 1));
+    }
+
+    private static void print(String name, int count, double score, double error, String units) {
+        String errorColumn = Double.isNaN(error) ? "" : String.format(Locale.ROOT, "+- %.3f", error);
+        System.out.println(String.format(Locale.ROOT, "%-56s %4d %14.3f %12s  %s",
+                name, count, score, errorColumn, units));
+    }
+
+    private static class Iteration {
+        long operations;
+        long nanos;
+        /** Bytes allocated during the iteration, or -1 if unknown */
+        long allocated;
+    }
+}
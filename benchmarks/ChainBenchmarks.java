@@ -0,0 +1,150 @@
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Benchmarks of the addition of blocks to the block chain */
+class ChainBenchmarks {
+
+    /** Number of blocks of the main branch */
+    private static final int MAIN_BLOCKS = 40;
+
+    /** Number of main branch blocks between two forks */
+    private static final int FORK_INTERVAL = 4;
+
+    /** Number of blocks and transactions of the generated workload */
+    private static final int WORKLOAD_ITEMS = Integer.getInteger("bench.workloadItems", 500);
+
+    static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new AddBlocks());
+        benchmarks.add(new Workload());
+        return benchmarks;
+    }
+
+    /**
+     * {@link BlockChain#addBlock} on a fresh block chain, scored per block added. The main branch
+     * is overtaken by a two-block fork every {@code FORK_INTERVAL} blocks, and takes over again
+     * on the next block, so that each fork makes the max height block switch branches twice. Each
+     * block of the main branch carries a transaction claiming the coinbase of the block two
+     * below.
+     * <p>
+     * The signatures are only verified on the first invocation, the others finding them in the
+     * signature cache; {@code Crypto.verifySignature} is benchmarked on its own.
+     */
+    static class AddBlocks extends Benchmark {
+        private Block genesis;
+        private List<Block> blocks;
+
+        AddBlocks() {
+            super("BlockChain.addBlock:forks");
+        }
+
+        @Override
+        void setUp() throws Exception {
+            // one key per block, so that their coinbases differ
+            List<KeyPair> miners = new ArrayList<KeyPair>();
+            for (int i = 0; i <= MAIN_BLOCKS + 2 * (MAIN_BLOCKS / FORK_INTERVAL); i++)
+                miners.add(ValidationBenchmarks.generateKeyPair(1024));
+            int nextMiner = 0;
+
+            genesis = new Block(null, miners.get(nextMiner++).getPublic());
+            genesis.finalize();
+            List<Block> main = new ArrayList<Block>();
+            List<KeyPair> mainMiners = new ArrayList<KeyPair>();
+            main.add(genesis);
+            mainMiners.add(miners.get(0));
+            blocks = new ArrayList<Block>();
+
+            for (int height = 1; height <= MAIN_BLOCKS; height++) {
+                KeyPair miner = miners.get(nextMiner++);
+                Block block = new Block(main.get(height - 1).getHash(), miner.getPublic());
+                if (height >= 2) {
+                    Transaction spent = main.get(height - 2).getCoinbase();
+                    Transaction tx = new Transaction();
+                    tx.addInput(spent.getHash(), 0);
+                    tx.addOutput(spent.getOutput(0).getValue(), miner.getPublic());
+                    tx.addSignature(ValidationBenchmarks.sign(mainMiners.get(height - 2).getPrivate(), tx.getRawDataToSign(0)), 0);
+                    tx.finalize();
+                    block.addTransaction(tx);
+                }
+                block.finalize();
+                blocks.add(block);
+                main.add(block);
+                mainMiners.add(miner);
+
+                if (height % FORK_INTERVAL == 0 && height < MAIN_BLOCKS) {
+                    // a sibling of the block, then a child of the sibling overtaking the main branch
+                    Block side = new Block(main.get(height - 1).getHash(), miners.get(nextMiner++).getPublic());
+                    side.finalize();
+                    Block sideChild = new Block(side.getHash(), miners.get(nextMiner++).getPublic());
+                    sideChild.finalize();
+                    blocks.add(side);
+                    blocks.add(sideChild);
+                }
+            }
+        }
+
+        @Override
+        Object run() {
+            BlockChain blockChain = new BlockChain(genesis);
+            for (Block block : blocks) {
+                if (!blockChain.addBlock(block))
+                    throw new IllegalStateException("block rejected");
+            }
+            return blockChain;
+        }
+
+        @Override
+        void tearDown() {
+            blocks = null;
+        }
+
+        @Override
+        int operationsPerInvocation() {
+            return blocks.size();
+        }
+    }
+
+    /**
+     * {@link BlockChain#addBlock} on a fresh block chain, and {@link BlockChain#acceptTransaction}
+     * on the transactions streamed before each block, over {@code WORKLOAD_ITEMS} items of a
+     * {@link WorkloadGenerator} with its default shape. Scored per item.
+     */
+    static class Workload extends Benchmark {
+        private Block genesis;
+        private List<WorkloadGenerator.Item> items;
+
+        Workload() {
+            super("BlockChain.addBlock:workload");
+        }
+
+        @Override
+        void setUp() {
+            WorkloadGenerator generator = new WorkloadGenerator(42, 64, 1024);
+            generator.setEmitTransactions(true);
+            genesis = generator.getGenesisBlock();
+            items = generator.next(WORKLOAD_ITEMS);
+        }
+
+        @Override
+        Object run() {
+            BlockChain blockChain = new BlockChain(genesis);
+            for (WorkloadGenerator.Item item : items) {
+                boolean accepted = item.block != null ? blockChain.addBlock(item.block) : blockChain.acceptTransaction(item.tx);
+                if (accepted != item.valid)
+                    throw new IllegalStateException(accepted ? "invalid item accepted" : "valid item rejected");
+            }
+            return blockChain;
+        }
+
+        @Override
+        void tearDown() {
+            items = null;
+        }
+
+        @Override
+        int operationsPerInvocation() {
+            return items.size();
+        }
+    }
+}
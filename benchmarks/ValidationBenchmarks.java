@@ -0,0 +1,338 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of the validation of transactions: {@link TxHandler#handleTxs}, the UTXO pool, the
+ * hashing of transactions and the verification of their signatures
+ */
+class ValidationBenchmarks {
+
+    /** Number of transactions handled at once, half of them claiming outputs of the other half */
+    private static final int EPOCH_TXS = 1000;
+
+    /** Sizes of the UTXO pools benchmarked, set by the {@code bench.utxoSizes} system property */
+    private static final String UTXO_SIZES = System.getProperty("bench.utxoSizes", "10000,1000000,10000000");
+
+    /** Number of lookups per invocation of the UTXO pool lookup benchmark */
+    private static final int LOOKUPS = 1000;
+
+    static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (Order order : Order.values())
+            benchmarks.add(new HandleTxs(order, false));
+        benchmarks.add(new HandleTxs(Order.randomOrder, true));
+        for (String size : UTXO_SIZES.split(",")) {
+            benchmarks.add(new UtxoPoolCopy(Integer.parseInt(size.trim())));
+            benchmarks.add(new UtxoPoolLookup(Integer.parseInt(size.trim())));
+        }
+        benchmarks.add(new GetRawTx());
+        benchmarks.add(new FinalizeTx());
+        benchmarks.add(new VerifySignature());
+        benchmarks.add(new VerifyInternedSignature());
+        return benchmarks;
+    }
+
+    /** Order of the transactions passed to {@link TxHandler#handleTxs} */
+    enum Order {
+        /** Transactions before those claiming their outputs */
+        inOrder,
+        /** Transactions after those claiming their outputs */
+        reverseOrder,
+        randomOrder
+    }
+
+    /**
+     * {@link TxHandler#handleTxs} on {@code EPOCH_TXS} transactions, or
+     * {@link TxHandler#handleTxsInParallel} if {@code parallel}. Signatures are not checked, as
+     * when a block is added to the block chain: they are benchmarked on their own.
+     */
+    static class HandleTxs extends Benchmark {
+        private final Order order;
+        private final boolean parallel;
+        private UTXOPool utxoPool;
+        private Transaction[] txs;
+
+        HandleTxs(Order order, boolean parallel) {
+            super((parallel ? "TxHandler.handleTxsInParallel:" : "TxHandler.handleTxs:") + order);
+            this.order = order;
+            this.parallel = parallel;
+        }
+
+        @Override
+        void setUp() throws Exception {
+            PublicKey address = generateKeyPair(1024).getPublic();
+            Transaction root = new Transaction();
+            for (int i = 0; i < EPOCH_TXS / 2; i++)
+                root.addOutput(10, address);
+            root.finalize();
+            utxoPool = new UTXOPool();
+            for (int i = 0; i < root.numOutputs(); i++)
+                utxoPool.addUTXO(new UTXO(root.getHash(), i), root.getOutput(i));
+
+            List<Transaction> epoch = new ArrayList<Transaction>();
+            for (int i = 0; i < EPOCH_TXS; i++) {
+                Transaction prevTx = i < EPOCH_TXS / 2 ? root : epoch.get(i - EPOCH_TXS / 2);
+                Transaction tx = new Transaction();
+                tx.addInput(prevTx.getHash(), i < EPOCH_TXS / 2 ? i : 0);
+                tx.addOutput(5, address);
+                tx.addOutput(4, address);
+                tx.addSignature(new byte[128], 0);
+                tx.finalize();
+                epoch.add(tx);
+            }
+            if (order == Order.reverseOrder)
+                Collections.reverse(epoch);
+            else if (order == Order.randomOrder)
+                Collections.shuffle(epoch, new Random(42));
+            txs = epoch.toArray(new Transaction[0]);
+        }
+
+        @Override
+        Object run() {
+            TxHandler handler = new TxHandler(utxoPool, false);
+            return parallel ? handler.handleTxsInParallel(txs) : handler.handleTxs(txs);
+        }
+
+        @Override
+        void tearDown() {
+            utxoPool = null;
+            txs = null;
+        }
+    }
+
+    /**
+     * Copy of a UTXO pool of {@code size} UTXOs that has just been changed, as the block chain
+     * does for each block. Includes the merging of the layers, amortized over the copies.
+     */
+    static class UtxoPoolCopy extends Benchmark {
+        private final int size;
+        private UTXOPool utxoPool;
+        private UTXO extra;
+        private Transaction.Output output;
+        private boolean added;
+
+        UtxoPoolCopy(int size) {
+            super("UTXOPool.copy:" + size);
+            this.size = size;
+        }
+
+        @Override
+        void setUp() {
+            utxoPool = newUtxoPool(size, null);
+            extra = new UTXO(new byte[32], -1);
+            output = new Transaction().new Output(1, null);
+        }
+
+        @Override
+        Object run() {
+            if (added)
+                utxoPool.removeUTXO(extra);
+            else
+                utxoPool.addUTXO(extra, output);
+            added = !added;
+            return new UTXOPool(utxoPool);
+        }
+
+        @Override
+        void tearDown() {
+            utxoPool = null;
+        }
+    }
+
+    /** Lookups of UTXOs in a UTXO pool of {@code size} UTXOs */
+    static class UtxoPoolLookup extends Benchmark {
+        private final int size;
+        private UTXOPool utxoPool;
+        private byte[][] txHashes;
+        private int next;
+
+        UtxoPoolLookup(int size) {
+            super("UTXOPool.lookup:" + size);
+            this.size = size;
+        }
+
+        @Override
+        void setUp() {
+            List<byte[]> hashes = new ArrayList<byte[]>();
+            utxoPool = newUtxoPool(size, hashes);
+            Collections.shuffle(hashes, new Random(7));
+            txHashes = hashes.subList(0, Math.min(hashes.size(), 1 << 16)).toArray(new byte[0][]);
+        }
+
+        @Override
+        Object run() {
+            Transaction.Output found = null;
+            for (int i = 0; i < LOOKUPS; i++) {
+                found = utxoPool.getTxOutput(txHashes[next], 0);
+                next = (next + 1) % txHashes.length;
+            }
+            return found;
+        }
+
+        @Override
+        void tearDown() {
+            utxoPool = null;
+            txHashes = null;
+        }
+
+        @Override
+        int operationsPerInvocation() {
+            return LOOKUPS;
+        }
+    }
+
+    /**
+     * Serialization of a transaction with two inputs and two outputs. A signature is set again
+     * before each call, so that the array kept by the transaction is rebuilt.
+     */
+    static class GetRawTx extends Benchmark {
+        private Transaction tx;
+        private byte[] signature;
+
+        GetRawTx() {
+            super("Transaction.getRawTx");
+        }
+
+        @Override
+        void setUp() throws Exception {
+            tx = newSignedTx();
+            signature = tx.getInput(0).getSignature();
+        }
+
+        @Override
+        Object run() {
+            tx.addSignature(signature, 0);
+            return tx.getRawTx();
+        }
+    }
+
+    /**
+     * Serialization and hashing of a transaction with two inputs and two outputs, after a
+     * signature is set again
+     */
+    static class FinalizeTx extends Benchmark {
+        private Transaction tx;
+        private byte[] signature;
+
+        FinalizeTx() {
+            super("Transaction.finalize");
+        }
+
+        @Override
+        void setUp() throws Exception {
+            tx = newSignedTx();
+            signature = tx.getInput(0).getSignature();
+        }
+
+        @Override
+        Object run() {
+            tx.addSignature(signature, 0);
+            tx.finalize();
+            return tx.getHash();
+        }
+    }
+
+    /** Verification of a valid signature under a 2048-bit RSA key */
+    static class VerifySignature extends Benchmark {
+        PublicKey publicKey;
+        byte[] message;
+        byte[] signature;
+
+        VerifySignature() {
+            this("Crypto.verifySignature");
+        }
+
+        VerifySignature(String name) {
+            super(name);
+        }
+
+        @Override
+        void setUp() throws Exception {
+            KeyPair keyPair = generateKeyPair(2048);
+            publicKey = keyPair.getPublic();
+            Transaction tx = newSignedTx();
+            message = tx.getRawDataToSign(0);
+            signature = sign(keyPair.getPrivate(), message);
+        }
+
+        @Override
+        Object run() {
+            return Crypto.verifySignature(publicKey, message, signature);
+        }
+    }
+
+    /** Verification of the same signature with a verifier kept by the interned address */
+    static class VerifyInternedSignature extends VerifySignature {
+        private AddressTable.Address address;
+
+        VerifyInternedSignature() {
+            super("AddressTable.Address.verify");
+        }
+
+        @Override
+        void setUp() throws Exception {
+            super.setUp();
+            address = AddressTable.getDefault().intern(publicKey);
+        }
+
+        @Override
+        Object run() {
+            return address.verify(message, signature);
+        }
+    }
+
+    /**
+     * @return a pool of {@code size} UTXOs, the first output of as many transactions, whose hashes
+     *         are added to {@code txHashes} unless it is null. The UTXOs share their output.
+     */
+    static UTXOPool newUtxoPool(int size, List<byte[]> txHashes) {
+        Random random = new Random(size);
+        Transaction.Output output = new Transaction().new Output(1, null);
+        UTXOPool utxoPool = new UTXOPool();
+        for (int i = 0; i < size; i++) {
+            byte[] txHash = new byte[32];
+            random.nextBytes(txHash);
+            utxoPool.addUTXO(new UTXO(txHash, 0), output);
+            if (txHashes != null)
+                txHashes.add(txHash);
+        }
+        return utxoPool;
+    }
+
+    /** @return a transaction with two inputs and two outputs, signed by a 2048-bit RSA key */
+    static Transaction newSignedTx() throws Exception {
+        KeyPair keyPair = generateKeyPair(2048);
+        byte[] prevTxHash = new byte[32];
+        Arrays.fill(prevTxHash, (byte) 1);
+        Transaction tx = new Transaction();
+        tx.addInput(prevTxHash, 0);
+        tx.addInput(prevTxHash, 1);
+        tx.addOutput(10, keyPair.getPublic());
+        tx.addOutput(5, keyPair.getPublic());
+        for (int i = 0; i < tx.numInputs(); i++)
+            tx.addSignature(sign(keyPair.getPrivate(), tx.getRawDataToSign(i)), i);
+        tx.finalize();
+        return tx;
+    }
+
+    static KeyPair generateKeyPair(int bits) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(bits);
+        return generator.generateKeyPair();
+    }
+
+    static byte[] sign(PrivateKey privateKey, byte[] message) throws Exception {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(privateKey);
+        signature.update(message);
+        return signature.sign();
+    }
+}
@@ -0,0 +1,504 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates a stream of blocks and transactions to feed a {@link BlockChain} with, for benchmarks
+ * and soak tests. The stream only depends on the seed: the same seed gives the same blocks on the
+ * same JDK.
+ * <p>
+ * The main branch grows by one block per step, each block carrying up to {@code txsPerBlock}
+ * transactions that claim between 1 and {@code maxInputs} outputs of earlier blocks, or of
+ * earlier transactions of the block at the rate {@code chainedTxRate}, and create between 1 and
+ * {@code maxOutputs} outputs. Along with the main branch the stream carries:
+ * <ul>
+ * <li>at the rate {@code forkRate}, a sibling of the max height block spending again an output
+ * that block spent: valid, but left behind,</li>
+ * <li>at the rate {@code reorgRate}, a two-block branch forking below the max height block and
+ * overtaking it, which the main branch continues from,</li>
+ * <li>at the rate {@code invalidBlockRate}, a block over the max height block that is invalid,
+ * with a wrong signature or a double spend,</li>
+ * <li>if {@link #setEmitTransactions}, the transactions of each main branch block before the
+ * block, along with invalid transactions at the rate {@code invalidTxRate}.</li>
+ * </ul>
+ * Each item of the stream tells whether it is valid, i.e. whether the block chain should accept
+ * it.
+ * <p>
+ * The keys are generated up front. The transactions of a block are signed in parallel, a layer
+ * of transactions not claiming outputs of one another at a time, so that the generator keeps up
+ * with the block chain it feeds.
+ */
+public class WorkloadGenerator {
+
+    /** Number of blocks after which the coinbase of a block is spent */
+    private static final int COINBASE_MATURITY = 3;
+
+    /** A transaction pays 1 / {@code FEE_DIVISOR} of the value of its inputs in fees */
+    private static final long FEE_DIVISOR = 1000;
+
+    private final Random random;
+    private final KeyPair[] keys;
+    /** Hash of the coinbase paying to each key, which only depends on the key */
+    private final ByteArrayWrapper[] coinbaseHashes;
+
+    private int txsPerBlock = 100;
+    private int maxInputs = 2;
+    private int maxOutputs = 2;
+    private double chainedTxRate = 0.1;
+    private double forkRate = 0.05;
+    private double reorgRate = 0.01;
+    private double invalidBlockRate = 0.02;
+    private double invalidTxRate = 0.02;
+    private boolean emitTransactions;
+
+    private final Block genesis;
+    /** Max height block of the main branch, its parent, and its height */
+    private Block tip;
+    private Block tipParent;
+    private int height;
+    /** Outputs of the main branch that can be spent, in no particular order */
+    private final ArrayList<Coin> coins;
+    /** Coinbases of the main branch not spendable yet, oldest first */
+    private final ArrayDeque<Coin> maturing;
+    /** Hashes of the coinbases in {@code coins} or {@code maturing} */
+    private final Set<ByteArrayWrapper> liveCoinbases;
+    /** Outputs spent by the transactions of {@code tip} that were created before it */
+    private List<Coin> spentByTip;
+
+    private final ArrayDeque<Item> items;
+
+    /** Generates {@code keyCount} keys of {@code keyBits} bits, from which all outputs are paid */
+    public WorkloadGenerator(long seed, int keyCount, int keyBits) {
+        if (keyCount < COINBASE_MATURITY + 4)
+            throw new IllegalArgumentException("at least " + (COINBASE_MATURITY + 4) + " keys are needed");
+        random = new Random(seed);
+        keys = new KeyPair[keyCount];
+        coinbaseHashes = new ByteArrayWrapper[keyCount];
+        try {
+            SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+            keyRandom.setSeed(seed);
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(keyBits, keyRandom);
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = generator.generateKeyPair();
+                coinbaseHashes[i] = new ByteArrayWrapper(new Transaction(Block.COINBASE, keys[i].getPublic()).getHash());
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        coins = new ArrayList<Coin>();
+        maturing = new ArrayDeque<Coin>();
+        liveCoinbases = new HashSet<ByteArrayWrapper>();
+        spentByTip = new ArrayList<Coin>();
+        items = new ArrayDeque<Item>();
+
+        int miner = pickMiner();
+        genesis = new Block(null, keys[miner].getPublic());
+        genesis.finalize();
+        tip = genesis;
+        height = 1;
+        addCoinbase(genesis, miner);
+    }
+
+    public Block getGenesisBlock() {
+        return genesis;
+    }
+
+    public void setTxsPerBlock(int txsPerBlock) {
+        this.txsPerBlock = txsPerBlock;
+    }
+
+    public void setMaxInputs(int maxInputs) {
+        this.maxInputs = Math.max(1, maxInputs);
+    }
+
+    public void setMaxOutputs(int maxOutputs) {
+        this.maxOutputs = Math.max(1, maxOutputs);
+    }
+
+    public void setChainedTxRate(double chainedTxRate) {
+        this.chainedTxRate = chainedTxRate;
+    }
+
+    public void setForkRate(double forkRate) {
+        this.forkRate = forkRate;
+    }
+
+    public void setReorgRate(double reorgRate) {
+        this.reorgRate = reorgRate;
+    }
+
+    public void setInvalidBlockRate(double invalidBlockRate) {
+        this.invalidBlockRate = invalidBlockRate;
+    }
+
+    public void setInvalidTxRate(double invalidTxRate) {
+        this.invalidTxRate = invalidTxRate;
+    }
+
+    /** Sets whether the transactions of the main branch blocks are streamed before their block */
+    public void setEmitTransactions(boolean emitTransactions) {
+        this.emitTransactions = emitTransactions;
+    }
+
+    /** @return the next block or transaction of the stream */
+    public Item next() {
+        while (items.isEmpty())
+            step();
+        return items.poll();
+    }
+
+    /** @return the next {@code count} items of the stream */
+    public List<Item> next(int count) {
+        List<Item> next = new ArrayList<Item>(count);
+        for (int i = 0; i < count; i++)
+            next.add(next());
+        return next;
+    }
+
+    /** Adds the items of one block of the main branch to the stream, with those coming with it */
+    private void step() {
+        if (random.nextDouble() < invalidBlockRate)
+            addInvalidBlock();
+
+        double fork = random.nextDouble();
+        if (fork < reorgRate && tipParent != null && !spentByTip.isEmpty()) {
+            reorganize();
+            return;
+        }
+        if (fork < reorgRate + forkRate && tipParent != null && !spentByTip.isEmpty())
+            addStaleBlock();
+
+        maturate();
+        int miner = pickMiner();
+        Block block = new Block(tip.getHash(), keys[miner].getPublic());
+        List<Coin> spent = new ArrayList<Coin>();
+        Draft previous = null;
+        for (Draft draft : createTransactions(txsPerBlock, spent)) {
+            if (emitTransactions) {
+                if (random.nextDouble() < invalidTxRate)
+                    addInvalidTransaction(previous);
+                items.add(new Item(null, draft.tx, true));
+            }
+            block.addTransaction(draft.tx);
+            previous = draft;
+        }
+        block.finalize();
+        connect(block, miner, spent);
+        items.add(new Item(block, null, true));
+    }
+
+    /** Makes the coinbases old enough spendable */
+    private void maturate() {
+        while (!maturing.isEmpty() && maturing.peek().height + COINBASE_MATURITY <= height)
+            coins.add(maturing.poll());
+    }
+
+    /** Makes {@code block}, whose transactions spent {@code spent}, the max height block */
+    private void connect(Block block, int miner, List<Coin> spent) {
+        tipParent = tip;
+        tip = block;
+        height++;
+        spentByTip = spent;
+        addCoinbase(block, miner);
+    }
+
+    private void addCoinbase(Block block, int miner) {
+        // a coinbase paying the same key as an unspent one is the same UTXO
+        if (liveCoinbases.add(coinbaseHashes[miner]))
+            maturing.add(new Coin(block.getCoinbase().getHash(), 0, Block.COINBASE, miner, height, true));
+    }
+
+    /**
+     * @return a key whose coinbase is not unspent on the main branch, so that it is a new UTXO, or
+     *         any key if there is none
+     */
+    private int pickMiner() {
+        int start = random.nextInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            int miner = (start + i) % keys.length;
+            if (!liveCoinbases.contains(coinbaseHashes[miner]))
+                return miner;
+        }
+        return start;
+    }
+
+    /**
+     * Adds a sibling of the max height block, spending an output spent by the max height block
+     * again. It is valid, but does not get longer than the main branch.
+     */
+    private void addStaleBlock() {
+        Coin coin = spentByTip.get(random.nextInt(spentByTip.size()));
+        Block block = new Block(tipParent.getHash(), keys[random.nextInt(keys.length)].getPublic());
+        block.addTransaction(createUnlinkedTransaction(coin, false));
+        block.finalize();
+        items.add(new Item(block, null, true));
+    }
+
+    /**
+     * Adds a branch of two blocks forking below the max height block and overtaking it. The first
+     * block carries the transactions of the max height block and one more, so that it hashes
+     * differently. The main branch goes on from the second block.
+     */
+    private void reorganize() {
+        // the coinbase of the max height block, which is not spendable yet, goes away
+        Coin tipCoinbase = maturing.peekLast();
+        if (tipCoinbase != null && tipCoinbase.height == height) {
+            maturing.pollLast();
+            liveCoinbases.remove(new ByteArrayWrapper(tipCoinbase.txHash));
+        }
+        Block replaced = tip;
+        tip = tipParent;
+        height--;
+
+        int miner = pickMiner();
+        Block first = new Block(tip.getHash(), keys[miner].getPublic());
+        for (Transaction tx : replaced.getTransactions())
+            first.addTransaction(tx);
+        // the outputs spent by the extra transaction may not exist below the max height block
+        for (Draft draft : createTransactions(1, new ArrayList<Coin>()))
+            first.addTransaction(draft.tx);
+        first.finalize();
+        connect(first, miner, new ArrayList<Coin>(spentByTip));
+        items.add(new Item(first, null, true));
+
+        maturate();
+        miner = pickMiner();
+        Block second = new Block(tip.getHash(), keys[miner].getPublic());
+        List<Coin> spent = new ArrayList<Coin>();
+        for (Draft draft : createTransactions(txsPerBlock, spent))
+            second.addTransaction(draft.tx);
+        second.finalize();
+        connect(second, miner, spent);
+        items.add(new Item(second, null, true));
+    }
+
+    /** Adds a block over the max height block with a wrong signature or a double spend */
+    private void addInvalidBlock() {
+        if (coins.isEmpty())
+            return;
+        Coin coin = coins.get(random.nextInt(coins.size()));
+        Block block = new Block(tip.getHash(), keys[random.nextInt(keys.length)].getPublic());
+        if (random.nextBoolean()) {
+            block.addTransaction(createUnlinkedTransaction(coin, true));
+        } else {
+            block.addTransaction(createUnlinkedTransaction(coin, false));
+            block.addTransaction(createUnlinkedTransaction(coin, false));
+        }
+        block.finalize();
+        items.add(new Item(block, null, false));
+    }
+
+    /**
+     * Adds a transaction that the transaction pool should reject: spending again an output spent
+     * by {@code previous}, the last transaction streamed, or with a wrong signature
+     */
+    private void addInvalidTransaction(Draft previous) {
+        if (previous != null && random.nextBoolean()) {
+            items.add(new Item(null, createUnlinkedTransaction(previous.inputs.get(0), false), false));
+        } else if (!coins.isEmpty()) {
+            Coin coin = coins.get(random.nextInt(coins.size()));
+            items.add(new Item(null, createUnlinkedTransaction(coin, true), false));
+        }
+    }
+
+    /**
+     * @return a transaction spending {@code coin} without taking it out of the spendable outputs,
+     *         with a wrong signature if {@code badSignature}
+     */
+    private Transaction createUnlinkedTransaction(Coin coin, boolean badSignature) {
+        Transaction tx = new Transaction();
+        tx.addInput(coin.txHash, coin.index);
+        tx.addOutput(coin.value - coin.value / FEE_DIVISOR, keys[random.nextInt(keys.length)].getPublic());
+        int signer = badSignature ? (coin.key + 1) % keys.length : coin.key;
+        tx.addSignature(sign(keys[signer].getPrivate(), tx.getRawDataToSign(0)), 0);
+        tx.finalize();
+        return tx;
+    }
+
+    /**
+     * Creates up to {@code count} transactions spending outputs of the main branch, which are
+     * added to {@code spent}, and makes their outputs spendable
+     */
+    private List<Draft> createTransactions(int count, List<Coin> spent) {
+        List<Draft> drafts = new ArrayList<Draft>();
+        List<Coin> created = new ArrayList<Coin>();
+        int layers = 0;
+        for (int i = 0; i < count; i++) {
+            Draft draft = new Draft();
+            int numInputs = 1 + random.nextInt(maxInputs);
+            long value = 0;
+            for (int j = 0; j < numInputs; j++) {
+                Coin coin;
+                if (!created.isEmpty() && random.nextDouble() < chainedTxRate) {
+                    coin = removeRandom(created);
+                    draft.layer = Math.max(draft.layer, coin.draft.layer + 1);
+                } else if (!coins.isEmpty()) {
+                    coin = removeRandom(coins);
+                    if (coin.coinbase)
+                        liveCoinbases.remove(new ByteArrayWrapper(coin.txHash));
+                    spent.add(coin);
+                } else {
+                    break;
+                }
+                draft.inputs.add(coin);
+                value += coin.value;
+            }
+            if (draft.inputs.isEmpty())
+                break;
+
+            int numOutputs = 1 + random.nextInt(maxOutputs);
+            long outputValue = (value - value / FEE_DIVISOR) / numOutputs;
+            for (int j = 0; j < numOutputs; j++) {
+                Coin coin = new Coin(null, j, outputValue, random.nextInt(keys.length), height + 1, false);
+                coin.draft = draft;
+                draft.outputs.add(coin);
+                created.add(coin);
+            }
+            drafts.add(draft);
+            layers = Math.max(layers, draft.layer + 1);
+        }
+
+        for (int layer = 0; layer < layers; layer++) {
+            List<Draft> ready = new ArrayList<Draft>();
+            for (Draft draft : drafts) {
+                if (draft.layer == layer)
+                    ready.add(draft);
+            }
+            ForkJoinPool.commonPool().invoke(new SignAction(ready, 0, ready.size()));
+            for (Draft draft : ready) {
+                for (Coin coin : draft.outputs)
+                    coin.txHash = draft.tx.getHash();
+            }
+        }
+        coins.addAll(created);
+        return drafts;
+    }
+
+    /** Removes an element of {@code list} at random, in constant time */
+    private <T> T removeRandom(List<T> list) {
+        int i = random.nextInt(list.size());
+        T removed = list.get(i);
+        list.set(i, list.get(list.size() - 1));
+        list.remove(list.size() - 1);
+        return removed;
+    }
+
+    private static final ThreadLocal<Signature> SIGNATURE = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance("SHA256withRSA");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static byte[] sign(PrivateKey privateKey, byte[] message) {
+        try {
+            Signature signature = SIGNATURE.get();
+            signature.initSign(privateKey);
+            signature.update(message);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A block or a transaction of the stream, and whether the block chain should accept it */
+    public static class Item {
+        public final Block block;
+        public final Transaction tx;
+        public final boolean valid;
+
+        Item(Block block, Transaction tx, boolean valid) {
+            this.block = block;
+            this.tx = tx;
+            this.valid = valid;
+        }
+    }
+
+    /** An output, with the key it pays to */
+    private static class Coin {
+        /** Hash of the transaction of the output, null until the transaction is signed */
+        byte[] txHash;
+        final int index;
+        /** Value in base units */
+        final long value;
+        final int key;
+        /** Height of the block the output was created in */
+        final int height;
+        final boolean coinbase;
+        /** Transaction being created with the output, if any */
+        Draft draft;
+
+        Coin(byte[] txHash, int index, long value, int key, int height, boolean coinbase) {
+            this.txHash = txHash;
+            this.index = index;
+            this.value = value;
+            this.key = key;
+            this.height = height;
+            this.coinbase = coinbase;
+        }
+    }
+
+    /** A transaction being created */
+    private class Draft {
+        final List<Coin> inputs = new ArrayList<Coin>();
+        final List<Coin> outputs = new ArrayList<Coin>();
+        /** 0 if the transaction claims no output of a transaction of its block, 1 + that of its parents otherwise */
+        int layer;
+        Transaction tx;
+
+        void create() {
+            tx = new Transaction();
+            for (Coin coin : inputs)
+                tx.addInput(coin.txHash, coin.index);
+            for (Coin coin : outputs)
+                tx.addOutput(coin.value, keys[coin.key].getPublic());
+            for (int i = 0; i < inputs.size(); i++)
+                tx.addSignature(sign(keys[inputs.get(i).key].getPrivate(), tx.getRawDataToSign(i)), i);
+            tx.finalize();
+        }
+    }
+
+    /** Creates and signs the drafts {@code from} to {@code to} */
+    private static class SignAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Draft> drafts;
+        private final int from;
+        private final int to;
+
+        SignAction(List<Draft> drafts, int from, int to) {
+            this.drafts = drafts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 8) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SignAction(drafts, from, middle), new SignAction(drafts, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++)
+                drafts.get(i).create();
+        }
+    }
+}